@@ -1,5 +1,7 @@
 package cn.zbx1425.resourcepackupdater;
 
+import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
+import cn.zbx1425.resourcepackupdater.io.network.SourceStats;
 import com.google.gson.*;
 import net.fabricmc.loader.api.FabricLoader;
 import org.apache.commons.lang3.builder.EqualsBuilder;
@@ -82,9 +84,34 @@ public class Config {
     public final ConfigItem<String> clientEnforceVersion = new ConfigItem<>(
         "clientEnforceVersion", JsonElement::getAsString, JsonPrimitive::new, "");
 
+    public final ConfigItem<Boolean> parallelScan = new ConfigItem<>(
+        "parallelScan", JsonElement::getAsBoolean, JsonPrimitive::new, true);
+    public final ConfigItem<Boolean> watchPackDir = new ConfigItem<>(
+        "watchPackDir", JsonElement::getAsBoolean, JsonPrimitive::new, false);
+    public final ConfigItem<Boolean> deepVerifyEncrypted = new ConfigItem<>(
+        "deepVerifyEncrypted", JsonElement::getAsBoolean, JsonPrimitive::new, false);
+    public final ConfigItem<Boolean> asyncDownloads = new ConfigItem<>(
+        "asyncDownloads", JsonElement::getAsBoolean, JsonPrimitive::new, true);
+    public final ConfigItem<Integer> minDownloadConcurrency = new ConfigItem<>(
+        "minDownloadConcurrency", JsonElement::getAsInt, JsonPrimitive::new, 2);
+    public final ConfigItem<Integer> maxDownloadConcurrency = new ConfigItem<>(
+        "maxDownloadConcurrency", JsonElement::getAsInt, JsonPrimitive::new, 16);
+    public final ConfigItem<Integer> segmentedDownloadMiB = new ConfigItem<>(
+        "segmentedDownloadMiB", JsonElement::getAsInt, JsonPrimitive::new, 32);
+    public final ConfigItem<Integer> downloadSegments = new ConfigItem<>(
+        "downloadSegments", JsonElement::getAsInt, JsonPrimitive::new, 4);
+    public final ConfigItem<Boolean> streamArchiveInstall = new ConfigItem<>(
+        "streamArchiveInstall", JsonElement::getAsBoolean, JsonPrimitive::new, true);
+    public final ConfigItem<Boolean> autoSelectSource = new ConfigItem<>(
+        "autoSelectSource", JsonElement::getAsBoolean, JsonPrimitive::new, true);
+
+    public final SourceStats sourceStats = new SourceStats();
+
     public List<ConfigItem<?>> configItems = List.of(
         remoteConfigUrl, sourceList, selectedSource, localPackName, disableBuiltinSources,
-        pauseWhenSuccess, onlyForServers, packBaseDirFile, serverLockKey, clientEnforceInstall, clientEnforceVersion
+        pauseWhenSuccess, onlyForServers, packBaseDirFile, serverLockKey, clientEnforceInstall, clientEnforceVersion,
+        parallelScan, watchPackDir, deepVerifyEncrypted, asyncDownloads, minDownloadConcurrency, maxDownloadConcurrency,
+        segmentedDownloadMiB, downloadSegments, streamArchiveInstall, autoSelectSource
     );
 
     public void load() throws IOException {
@@ -144,6 +171,8 @@ public class Config {
         if (migratedLegacyManifestConfig || seededDefaultSourceConfig) {
             save();
         }
+        sourceStats.load(getSourceStatsFilePath());
+        AssetEncryption.loadSealKey(getSealKeyFilePath());
     }
 
     public void save() throws IOException {
@@ -156,6 +185,20 @@ public class Config {
         Files.writeString(getConfigFilePath(), new GsonBuilder().setPrettyPrinting().create().toJson(obj));
     }
 
+    // The given source followed by every other one in its mirror group, or just the source if it has none.
+    public List<SourceProperty> getMirrorsOf(SourceProperty source) {
+        List<SourceProperty> mirrors = new ArrayList<>();
+        mirrors.add(source);
+        if (source.mirrorGroup.isEmpty()) return mirrors;
+        for (SourceProperty other : sourceList.value) {
+            if (other != source && other.mirrorGroup.equals(source.mirrorGroup) && !other.baseUrl.isEmpty()
+                    && !other.baseUrl.equals(source.baseUrl)) {
+                mirrors.add(other);
+            }
+        }
+        return mirrors;
+    }
+
     private void addBuiltinSources() {
         /*
         sourceList.value.add(0, new SourceProperty(
@@ -257,6 +300,14 @@ public class Config {
         return FabricLoader.getInstance().getConfigDir().resolve(ResourcePackUpdater.MOD_ID + ".json");
     }
 
+    public Path getSourceStatsFilePath() {
+        return FabricLoader.getInstance().getConfigDir().resolve(ResourcePackUpdater.MOD_ID + "_sources.json");
+    }
+
+    public Path getSealKeyFilePath() {
+        return FabricLoader.getInstance().getConfigDir().resolve(ResourcePackUpdater.MOD_ID + "_seal.key");
+    }
+
 
     public static class ConfigItem<T> {
 
@@ -312,6 +363,8 @@ public class Config {
         public boolean hasDirHash;
         public boolean hasArchive;
         public boolean isBuiltin;
+        // Sources sharing a non-empty group hold the same pack, and a sync fetches from all of them.
+        public String mirrorGroup = "";
 
         public SourceProperty(String name, String baseUrl, boolean hasDirHash, boolean hasArchive, boolean isBuiltin) {
             this.name = name;
@@ -327,6 +380,7 @@ public class Config {
             this.hasDirHash = obj.get("hasDirHash").getAsBoolean();
             this.hasArchive = obj.get("hasArchive").getAsBoolean();
             this.isBuiltin = false;
+            if (obj.has("mirrorGroup")) this.mirrorGroup = obj.get("mirrorGroup").getAsString();
         }
 
         public JsonObject toJson() {
@@ -335,6 +389,7 @@ public class Config {
             obj.addProperty("baseUrl", baseUrl);
             obj.addProperty("hasDirHash", hasDirHash);
             obj.addProperty("hasArchive", hasArchive);
+            if (!mirrorGroup.isEmpty()) obj.addProperty("mirrorGroup", mirrorGroup);
             return obj;
         }
 
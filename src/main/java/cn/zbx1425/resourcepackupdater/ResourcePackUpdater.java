@@ -6,6 +6,7 @@ import cn.zbx1425.resourcepackupdater.gui.GlProgressScreen;
 import cn.zbx1425.resourcepackupdater.gui.gl.PreloadTextureResource;
 import cn.zbx1425.resourcepackupdater.io.Dispatcher;
 import cn.zbx1425.resourcepackupdater.io.network.DummyTrustManager;
+import cn.zbx1425.resourcepackupdater.io.network.SourceStats;
 import com.google.gson.JsonParser;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
@@ -22,8 +23,10 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.net.http.HttpClient;
 import java.time.Duration;
+import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -53,7 +56,8 @@ public class ResourcePackUpdater implements ModInitializer {
         final Properties props = System.getProperties();
         props.setProperty("jdk.internal.httpclient.disableHostnameVerification", Boolean.TRUE.toString());
 
-        ExecutorService HTTP_CLIENT_EXECUTOR = Executors.newFixedThreadPool(4);
+        // Cached rather than fixed, so the client never becomes the cap on concurrent downloads.
+        ExecutorService HTTP_CLIENT_EXECUTOR = Executors.newCachedThreadPool();
         HTTP_CLIENT = HttpClient.newBuilder()
                 .followRedirects(HttpClient.Redirect.NORMAL)
                 .connectTimeout(Duration.ofSeconds(10))
@@ -93,11 +97,20 @@ public class ResourcePackUpdater implements ModInitializer {
 
         GlHelper.initGlStates();
 
+        boolean autoSelectTried = false;
         while (true) {
             Dispatcher syncDispatcher = new Dispatcher();
             if (ResourcePackUpdater.CONFIG.selectedSource.value == null // TODO how did we get here?
                 || ResourcePackUpdater.CONFIG.selectedSource.value.baseUrl.isEmpty()) {
-                if (ResourcePackUpdater.CONFIG.sourceList.value.size() > 1) {
+                if (ResourcePackUpdater.CONFIG.sourceList.value.size() > 1
+                        && ResourcePackUpdater.CONFIG.autoSelectSource.value && !autoSelectTried) {
+                    // Only once, so backing out of the sync still leads to the source list.
+                    autoSelectTried = true;
+                    autoSelectSource();
+                } else if (ResourcePackUpdater.CONFIG.sourceList.value.size() > 1) {
+                    // Fills in the numbers shown next to each source while the list is up.
+                    ResourcePackUpdater.CONFIG.sourceStats.probe(ResourcePackUpdater.CONFIG.sourceList.value)
+                            .whenComplete((ignored, ex) -> ResourcePackUpdater.CONFIG.sourceStats.save());
                     ResourcePackUpdater.GL_PROGRESS_SCREEN.resetToSelectSource();
                     try {
                         while (ResourcePackUpdater.GL_PROGRESS_SCREEN.shouldContinuePausing(true)) {
@@ -162,6 +175,24 @@ public class ResourcePackUpdater implements ModInitializer {
         GlHelper.resetGlStates();
     }
 
+    // Picks the source expected to be fastest without saving the choice, so it is made again on each launch
+    // with newer numbers. Sources are probed first only when none of them has been seen before; otherwise
+    // the stored numbers decide and the probes run in the background for next time.
+    private static void autoSelectSource() {
+        List<Config.SourceProperty> sources = ResourcePackUpdater.CONFIG.sourceList.value;
+        SourceStats sourceStats = ResourcePackUpdater.CONFIG.sourceStats;
+        CompletableFuture<Void> probes = sourceStats.probe(sources).whenComplete((ignored, ex) -> sourceStats.save());
+        if (!sourceStats.hasAny(sources)) {
+            try {
+                probes.get();
+            } catch (Exception ignored) { }
+        }
+        Config.SourceProperty source = sourceStats.rank(sources).get(0);
+        ResourcePackUpdater.CONFIG.selectedSource.value = source;
+        ResourcePackUpdater.CONFIG.selectedSource.isFromLocal = false;
+        ResourcePackUpdater.LOGGER.info("Selected source " + source.name + " automatically");
+    }
+
     private static boolean shouldSyncForCurrentServer() {
         if (ResourcePackUpdater.CONFIG.onlyForServers.value == null || ResourcePackUpdater.CONFIG.onlyForServers.value.isEmpty()) {
             return true;
@@ -1,89 +1,165 @@
 package cn.zbx1425.resourcepackupdater.drm;
 
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
 import javax.crypto.KeyGenerator;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.Arrays;
 
 public class AssetEncryption {
 
     private static final byte[] HEADER_MAGIC = "ZBXNMB10".getBytes(StandardCharsets.UTF_8);
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int SEAL_KEY_LENGTH = 32;
+
+    // Seals the ZBXNMB20 headers written here. It never leaves this installation, so a header that checks out
+    // against it was written by this client, which only does so for content it has just verified. Until
+    // loadSealKey is called it only lasts as long as the process.
+    private static byte[] sealKey = generateSealKey();
+
+    // A cipher is taken out while a stream uses it and put back on close, so nested streams never share one.
+    private static final ThreadLocal<Cipher> CIPHER_POOL = new ThreadLocal<>();
+    private static final ThreadLocal<MessageDigest> SHA256_POOL = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+    private static final ThreadLocal<KeyGenerator> KEY_GENERATOR_POOL = ThreadLocal.withInitial(() -> {
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(256);
+            return keyGenerator;
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
 
     public static boolean isEncrypted(FileInputStream fis) throws IOException {
+        return readVersion(fis) != 0;
+    }
+
+    // Whether the file is in the chunked ZBXNMB20 format, which ChunkedEncryption.RandomAccessReader can seek in.
+    public static boolean isChunkedEncrypted(FileInputStream fis) throws IOException {
+        return readVersion(fis) == 2;
+    }
+
+    // Returns 1 or 2 for the respective format, leaving fis after the magic, or 0 with fis rewound for a raw file.
+    private static int readVersion(FileInputStream fis) throws IOException {
+        fis.getChannel().position(0);
+        byte[] magic = fis.readNBytes(HEADER_MAGIC.length);
+        if (Arrays.equals(magic, HEADER_MAGIC)) return 1;
+        if (Arrays.equals(magic, ChunkedEncryption.HEADER_MAGIC)) return 2;
         fis.getChannel().position(0);
-        boolean result = Arrays.equals(fis.readNBytes(HEADER_MAGIC.length), HEADER_MAGIC);
-        if (!result) fis.getChannel().position(0);
-        return result;
+        return 0;
     }
 
-    public static InputStream wrapInputStream(FileInputStream fis) throws IOException {
-        if (isEncrypted(fis)) {
-            try (DataInputStream dis = new DataInputStream(fis)) {
-                int versionMajor = dis.readInt();
-                int versionMinor = dis.readInt();
-                byte[] dContent;
-                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-                byte[] key = dis.readNBytes(32);
-                SecretKeySpec aesKey = new SecretKeySpec(key, "AES");
-                byte[] iv = Arrays.copyOfRange(sha256.digest(key), 0, 16);
-                IvParameterSpec aesIv = new IvParameterSpec(iv);
-
-                int len = dis.readInt();
-                byte[] eContent = dis.readNBytes(len);
-                Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                cipher.init(Cipher.DECRYPT_MODE, aesKey, aesIv);
-                dContent = cipher.doFinal(eContent);
-                return new ByteArrayInputStream(dContent);
-            } catch (Exception ex) {
-                throw new IOException(ex);
+    // Reads the installation's seal key from file, creating it first if there is none yet.
+    public static synchronized void loadSealKey(Path file) {
+        try {
+            if (Files.isRegularFile(file) && Files.size(file) == SEAL_KEY_LENGTH) {
+                sealKey = Files.readAllBytes(file);
+            } else {
+                byte[] newSealKey = generateSealKey();
+                Files.write(file, newSealKey);
+                sealKey = newSealKey;
             }
-        } else {
-            return fis;
+        } catch (IOException ex) {
+            ResourcePackUpdater.LOGGER.warn("Cannot keep the header seal key, files written now are only trusted until restart", ex);
         }
     }
 
-    public static void writeEncrypted(byte[] src, File target) throws IOException {
-        byte[] eContent, key;
-        try {
-            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
-            keyGenerator.init(256);
-            key = keyGenerator.generateKey().getEncoded();
+    private static synchronized byte[] getSealKey() {
+        return sealKey;
+    }
 
-            SecretKeySpec aesKey = new SecretKeySpec(key, "AES");
-            byte[] iv = Arrays.copyOfRange(sha256.digest(key), 0, 16);
-            IvParameterSpec aesIv = new IvParameterSpec(iv);
+    private static byte[] generateSealKey() {
+        byte[] key = new byte[SEAL_KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
 
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, aesKey, aesIv);
-            eContent = cipher.doFinal(src);
-        } catch (Exception ex) {
-            throw new IOException(ex);
+    // The plaintext SHA-1 recorded in a ZBXNMB20 header this installation sealed, or null if the file has none.
+    // Leaves fis rewound.
+    public static byte[] readPlainSha1(FileInputStream fis) throws IOException {
+        byte[] plainSha1 = readVersion(fis) == 2 ? ChunkedEncryption.readPlainSha1(fis.getChannel(), getSealKey()) : null;
+        fis.getChannel().position(0);
+        return plainSha1;
+    }
+
+    public static InputStream wrapInputStream(FileInputStream fis) throws IOException {
+        int version = readVersion(fis);
+        if (version == 2) {
+            return ChunkedEncryption.wrapInputStream(fis);
+        } else if (version == 1) {
+            DataInputStream dis = new DataInputStream(fis);
+            int versionMajor = dis.readInt();
+            int versionMinor = dis.readInt();
+            byte[] key = dis.readNBytes(32);
+            int len = dis.readInt();
+            Cipher cipher = borrowCipher(Cipher.DECRYPT_MODE, key);
+            InputStream eContent = new BoundedInputStream(new BufferedInputStream(fis, STREAM_BUFFER_SIZE), len);
+            return new CipherInputStream(eContent, cipher) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    CIPHER_POOL.set(cipher);
+                }
+            };
+        } else {
+            return fis;
         }
+    }
+
+    // New files are always written in the chunked ZBXNMB20 format; ZBXNMB10 files are still read.
+    public static OutputStream openEncryptedOutputStream(File target) throws IOException {
+        return ChunkedEncryption.openOutputStream(target, KEY_GENERATOR_POOL.get().generateKey().getEncoded(), getSealKey());
+    }
 
-        try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(target))) {
-            DataOutputStream dos = new DataOutputStream(bos);
-            dos.write("ZBXNMB10".getBytes(StandardCharsets.UTF_8));
-            dos.writeInt(1);
-            dos.writeInt(0);
-            dos.write(key);
-            dos.writeInt(eContent.length);
-            dos.write(eContent);
+    public static void writeEncrypted(byte[] src, File target) throws IOException {
+        try (OutputStream os = openEncryptedOutputStream(target)) {
+            os.write(src);
         }
     }
 
     public static void encryptIfRaw(File target) throws IOException {
-        byte[] src;
+        File tempFile = new File(target.getParentFile(), target.getName() + ".enc.tmp");
         try (FileInputStream fis = new FileInputStream(target)) {
             if (isEncrypted(fis)) return;
-            src = IOUtils.toByteArray(fis);
+            try (OutputStream os = openEncryptedOutputStream(tempFile)) {
+                IOUtils.copy(fis, os, STREAM_BUFFER_SIZE);
+            }
+        } catch (IOException ex) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw ex;
+        }
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static Cipher borrowCipher(int mode, byte[] key) throws IOException {
+        try {
+            Cipher cipher = CIPHER_POOL.get();
+            CIPHER_POOL.set(null);
+            if (cipher == null) cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            byte[] iv = Arrays.copyOfRange(SHA256_POOL.get().digest(key), 0, 16);
+            cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            return cipher;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
         }
-        writeEncrypted(src, target);
     }
 }
@@ -0,0 +1,440 @@
+package cn.zbx1425.resourcepackupdater.drm;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// ZBXNMB20: magic, int versionMajor, int versionMinor, byte[32] key, byte[12] nonce, int chunkSize, long plainLength,
+// and since version 2.1 byte[20] plainSha1 and a 16-byte HMAC-SHA256 tag over all preceding header bytes, then the content split into chunkSize pieces, each sealed on its own with AES-GCM and followed by its 16-byte tag.
+// The header tag is keyed with a key of the installation that wrote the file, never with the one stored in it.
+// Chunk i uses the nonce with i XORed into its last 8 bytes and [long i][byte isLastChunk] as AAD, so chunks can
+// neither be reordered nor cut off at a chunk boundary. Chunk offsets follow from chunkSize, no table is stored.
+public class ChunkedEncryption {
+
+    public static final byte[] HEADER_MAGIC = "ZBXNMB20".getBytes(StandardCharsets.UTF_8);
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final int HEADER_SIZE_V20 = HEADER_MAGIC.length + 4 + 4 + 32 + 12 + 4 + 8;
+    private static final int HEADER_SIZE = HEADER_SIZE_V20 + 20 + 16;
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int TAG_SIZE = 16;
+    private static final int PARALLEL_BATCH = 16;
+    // Most assets are far smaller than a full batch, so the buffers start out small and grow with the file.
+    private static final int INITIAL_BATCH_BUFFER = 16 * 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Only ever held within a single chunk operation, so one per thread is enough.
+    private static final ThreadLocal<Cipher> GCM_POOL = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+    private static final ThreadLocal<Mac> HMAC_POOL = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    public static class Header {
+
+        public final int versionMinor;
+        public final byte[] key;
+        public final byte[] nonce;
+        public final int chunkSize;
+        public long plainLength;
+        public byte[] plainSha1;
+        private byte[] tag;
+
+        public Header(int versionMinor, byte[] key, byte[] nonce, int chunkSize, long plainLength, byte[] plainSha1) {
+            this.versionMinor = versionMinor;
+            this.key = key;
+            this.nonce = nonce;
+            this.chunkSize = chunkSize;
+            this.plainLength = plainLength;
+            this.plainSha1 = plainSha1;
+        }
+
+        // Reads the fields after the magic.
+        public static Header read(DataInput input) throws IOException {
+            int versionMajor = input.readInt();
+            int versionMinor = input.readInt();
+            if (versionMajor != 2) throw new IOException("Unsupported encryption version: " + versionMajor + "." + versionMinor);
+            byte[] key = new byte[32];
+            input.readFully(key);
+            byte[] nonce = new byte[12];
+            input.readFully(nonce);
+            int chunkSize = input.readInt();
+            long plainLength = input.readLong();
+            if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || plainLength < 0) {
+                throw new IOException("Corrupted encryption header");
+            }
+            if (versionMinor < 1) return new Header(versionMinor, key, nonce, chunkSize, plainLength, null);
+            byte[] plainSha1 = new byte[20];
+            input.readFully(plainSha1);
+            byte[] tag = new byte[TAG_SIZE];
+            input.readFully(tag);
+            Header header = new Header(versionMinor, key, nonce, chunkSize, plainLength, plainSha1);
+            header.tag = tag;
+            return header;
+        }
+
+        public static Header read(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(HEADER_SIZE, channel.size()));
+            readFully(channel, buffer, 0);
+            byte[] magic = new byte[HEADER_MAGIC.length];
+            if (buffer.limit() < magic.length) throw new IOException("Not a ZBXNMB20 file");
+            buffer.get(0, magic);
+            if (!Arrays.equals(magic, HEADER_MAGIC)) throw new IOException("Not a ZBXNMB20 file");
+            try {
+                return read(new DataInputStream(new ByteArrayInputStream(buffer.array(), magic.length, buffer.limit())));
+            } catch (EOFException ex) {
+                throw new IOException("Encryption header is truncated", ex);
+            }
+        }
+
+        // The tag is left blank without a sealKey.
+        public byte[] toBytes(byte[] sealKey) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(getHeaderSize());
+            buffer.put(HEADER_MAGIC).putInt(2).putInt(versionMinor).put(key).put(nonce).putInt(chunkSize).putLong(plainLength);
+            if (versionMinor >= 1) {
+                buffer.put(plainSha1 != null ? plainSha1 : new byte[20]);
+                if (sealKey != null) buffer.put(computeTag(sealKey));
+            }
+            return buffer.array();
+        }
+
+        // Whether the header was sealed with sealKey. Nothing else depends on the tag, so a file written
+        // elsewhere still decrypts, it only cannot vouch for its plainSha1.
+        public boolean isSealedWith(byte[] sealKey) throws IOException {
+            return tag != null && MessageDigest.isEqual(tag, computeTag(sealKey));
+        }
+
+        private byte[] computeTag(byte[] sealKey) throws IOException {
+            try {
+                Mac mac = HMAC_POOL.get();
+                mac.init(new SecretKeySpec(sealKey, "HmacSHA256"));
+                mac.update(toBytes(null), 0, HEADER_SIZE - TAG_SIZE);
+                return Arrays.copyOf(mac.doFinal(), TAG_SIZE);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+        }
+
+        public int getHeaderSize() {
+            return versionMinor >= 1 ? HEADER_SIZE : HEADER_SIZE_V20;
+        }
+
+        public long getChunkCount() {
+            return Math.max(1, (plainLength + chunkSize - 1) / chunkSize);
+        }
+
+        public int getChunkPlainLength(long chunkIndex) {
+            return (int) Math.min(chunkSize, plainLength - chunkIndex * chunkSize);
+        }
+
+        public long getChunkOffset(long chunkIndex) {
+            return getHeaderSize() + chunkIndex * (chunkSize + TAG_SIZE);
+        }
+
+        public long getFileLength() {
+            return getChunkOffset(getChunkCount() - 1) + getChunkPlainLength(getChunkCount() - 1) + TAG_SIZE;
+        }
+    }
+
+    // The header is sealed with sealKey once the content, and so its SHA-1, is complete.
+    public static OutputStream openOutputStream(File target, byte[] key, byte[] sealKey) throws IOException {
+        byte[] nonce = new byte[12];
+        RANDOM.nextBytes(nonce);
+        Header header = new Header(1, key, nonce, DEFAULT_CHUNK_SIZE, 0, null);
+        FileOutputStream fos = new FileOutputStream(target);
+        try {
+            fos.write(header.toBytes(null));
+        } catch (IOException ex) {
+            fos.close();
+            throw ex;
+        }
+        return new ChunkedOutputStream(fos, header, sealKey);
+    }
+
+    // Expects the magic to have been consumed from fis already.
+    public static InputStream wrapInputStream(FileInputStream fis) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(fis, DEFAULT_CHUNK_SIZE + TAG_SIZE));
+        return new ChunkedInputStream(dis, Header.read(dis));
+    }
+
+    // The SHA-1 of the content as recorded by the writer, or null if the header has none, was not sealed
+    // with sealKey or does not fit the length of the file.
+    public static byte[] readPlainSha1(FileChannel channel, byte[] sealKey) {
+        try {
+            Header header = Header.read(channel);
+            return header.isSealedWith(sealKey) && channel.size() == header.getFileLength() ? header.plainSha1 : null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    public static class RandomAccessReader implements Closeable {
+
+        private final FileChannel channel;
+        public final Header header;
+        private final byte[] eChunk;
+        private final byte[] chunk;
+        private long loadedChunk = -1;
+
+        public RandomAccessReader(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                this.header = Header.read(channel);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+            this.eChunk = new byte[header.chunkSize + TAG_SIZE];
+            this.chunk = new byte[header.chunkSize];
+        }
+
+        // Decrypts only the chunks that overlap the requested range. Returns -1 at the end of the content.
+        public int read(long position, byte[] b, int off, int len) throws IOException {
+            if (position >= header.plainLength) return -1;
+            int totalRead = 0;
+            while (len > 0 && position < header.plainLength) {
+                long chunkIndex = position / header.chunkSize;
+                int chunkLength = loadChunk(chunkIndex);
+                int chunkPosition = (int) (position - chunkIndex * header.chunkSize);
+                int n = Math.min(len, chunkLength - chunkPosition);
+                System.arraycopy(chunk, chunkPosition, b, off, n);
+                position += n;
+                off += n;
+                len -= n;
+                totalRead += n;
+            }
+            return totalRead;
+        }
+
+        private int loadChunk(long chunkIndex) throws IOException {
+            int chunkLength = header.getChunkPlainLength(chunkIndex);
+            if (loadedChunk != chunkIndex) {
+                loadedChunk = -1;
+                readFully(channel, ByteBuffer.wrap(eChunk, 0, chunkLength + TAG_SIZE), header.getChunkOffset(chunkIndex));
+                decryptChunk(header, chunkIndex, eChunk, chunkLength + TAG_SIZE, chunk);
+                loadedChunk = chunkIndex;
+            }
+            return chunkLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class ChunkedInputStream extends InputStream {
+
+        private final DataInputStream dis;
+        private final Header header;
+        private final byte[] eChunk;
+        private final byte[] chunk;
+        private long nextChunk = 0;
+        private int chunkLength = 0;
+        private int chunkPosition = 0;
+
+        ChunkedInputStream(DataInputStream dis, Header header) {
+            this.dis = dis;
+            this.header = header;
+            this.eChunk = new byte[header.chunkSize + TAG_SIZE];
+            this.chunk = new byte[header.chunkSize];
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureData()) return -1;
+            return chunk[chunkPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!ensureData()) return -1;
+            int n = Math.min(len, chunkLength - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, b, off, n);
+            chunkPosition += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chunkLength - chunkPosition;
+        }
+
+        private boolean ensureData() throws IOException {
+            while (chunkPosition >= chunkLength) {
+                if (nextChunk >= header.getChunkCount()) return false;
+                int eLength = header.getChunkPlainLength(nextChunk) + TAG_SIZE;
+                try {
+                    dis.readFully(eChunk, 0, eLength);
+                } catch (EOFException ex) {
+                    throw new IOException("Encrypted file is truncated", ex);
+                }
+                chunkLength = decryptChunk(header, nextChunk, eChunk, eLength, chunk);
+                chunkPosition = 0;
+                nextChunk++;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            dis.close();
+        }
+    }
+
+    private static class ChunkedOutputStream extends OutputStream {
+
+        private final FileOutputStream fos;
+        private final Header header;
+        private final byte[] sealKey;
+        private final int maxPendingLength;
+        private byte[] pending;
+        private byte[] eBatch = new byte[0];
+        private final MessageDigest plainDigest;
+        private int pendingLength = 0;
+        private long nextChunk = 0;
+        private boolean closed = false;
+
+        ChunkedOutputStream(FileOutputStream fos, Header header, byte[] sealKey) {
+            this.fos = fos;
+            this.header = header;
+            this.sealKey = sealKey;
+            this.maxPendingLength = header.chunkSize * PARALLEL_BATCH;
+            this.pending = new byte[Math.min(INITIAL_BATCH_BUFFER, maxPendingLength)];
+            try {
+                this.plainDigest = MessageDigest.getInstance("SHA-1");
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            plainDigest.update(b, off, len);
+            while (len > 0) {
+                // A full batch is only sealed once more data shows up, so the last chunk is always known on close.
+                if (pendingLength == pending.length) {
+                    if (pending.length < maxPendingLength) {
+                        pending = Arrays.copyOf(pending, Math.min(pending.length * 2, maxPendingLength));
+                    } else {
+                        flushBatch(false);
+                    }
+                }
+                int n = Math.min(len, pending.length - pendingLength);
+                System.arraycopy(b, off, pending, pendingLength, n);
+                pendingLength += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try (fos) {
+                flushBatch(true);
+                header.plainSha1 = plainDigest.digest();
+                ByteBuffer headerBytes = ByteBuffer.wrap(header.toBytes(sealKey));
+                while (headerBytes.hasRemaining()) {
+                    fos.getChannel().write(headerBytes, headerBytes.position());
+                }
+            }
+        }
+
+        private void flushBatch(boolean isLastBatch) throws IOException {
+            int chunkCount = Math.max(1, (pendingLength + header.chunkSize - 1) / header.chunkSize);
+            long firstChunk = nextChunk;
+            long lastChunk = isLastBatch ? firstChunk + chunkCount - 1 : -1;
+            int eLength = pendingLength + chunkCount * TAG_SIZE;
+            if (eBatch.length < eLength) eBatch = new byte[eLength];
+            IntStream chunks = IntStream.range(0, chunkCount);
+            if (chunkCount > 1) chunks = chunks.parallel();
+            try {
+                chunks.forEach(i -> {
+                    int chunkLength = Math.min(header.chunkSize, pendingLength - i * header.chunkSize);
+                    try {
+                        encryptChunk(header, firstChunk + i, firstChunk + i == lastChunk,
+                                pending, i * header.chunkSize, chunkLength, eBatch, i * (header.chunkSize + TAG_SIZE));
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            fos.write(eBatch, 0, eLength);
+            header.plainLength += pendingLength;
+            nextChunk += chunkCount;
+            pendingLength = 0;
+        }
+    }
+
+    private static void encryptChunk(Header header, long chunkIndex, boolean isLastChunk,
+                                     byte[] src, int srcOff, int len, byte[] dst, int dstOff) throws IOException {
+        try {
+            Cipher cipher = GCM_POOL.get();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(header.key, "AES"), chunkSpec(header, chunkIndex));
+            cipher.updateAAD(chunkAad(chunkIndex, isLastChunk));
+            cipher.doFinal(src, srcOff, len, dst, dstOff);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static int decryptChunk(Header header, long chunkIndex, byte[] src, int len, byte[] dst) throws IOException {
+        try {
+            Cipher cipher = GCM_POOL.get();
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(header.key, "AES"), chunkSpec(header, chunkIndex));
+            cipher.updateAAD(chunkAad(chunkIndex, chunkIndex == header.getChunkCount() - 1));
+            return cipher.doFinal(src, 0, len, dst, 0);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Encrypted chunk " + chunkIndex + " failed verification", ex);
+        }
+    }
+
+    private static GCMParameterSpec chunkSpec(Header header, long chunkIndex) {
+        byte[] nonce = header.nonce.clone();
+        for (int i = 0; i < 8; i++) {
+            nonce[nonce.length - 1 - i] ^= (byte) (chunkIndex >>> (i * 8));
+        }
+        return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+    }
+
+    private static byte[] chunkAad(long chunkIndex, boolean isLastChunk) {
+        return ByteBuffer.allocate(9).putLong(chunkIndex).put((byte) (isLastChunk ? 1 : 0)).array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) throw new EOFException();
+        }
+    }
+}
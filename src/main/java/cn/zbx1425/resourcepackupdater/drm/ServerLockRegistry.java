@@ -10,6 +10,7 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
@@ -29,10 +30,8 @@ public class ServerLockRegistry {
             localServerLock = null; // So that when no longer lockAllSyncedPacks, the pack will reload
             return;
         }
-        try {
-            JsonObject metaObj = ResourcePackUpdater.JSON_PARSER.parse(IOUtils.toString(
-                    AssetEncryption.wrapInputStream(new FileInputStream(rpFolder.toPath().resolve("pack.mcmeta").toFile()))
-                    , StandardCharsets.UTF_8)).getAsJsonObject();
+        try (InputStream metaStream = AssetEncryption.wrapInputStream(new FileInputStream(rpFolder.toPath().resolve("pack.mcmeta").toFile()))) {
+            JsonObject metaObj = ResourcePackUpdater.JSON_PARSER.parse(IOUtils.toString(metaStream, StandardCharsets.UTF_8)).getAsJsonObject();
             if (metaObj.has("zbx_rpu_server_lock")) {
                 localServerLock = metaObj.get("zbx_rpu_server_lock").getAsString();
                 if (!serverLockPrefetched) {
@@ -1,7 +1,9 @@
 package cn.zbx1425.resourcepackupdater.gui.forms;
 
+import cn.zbx1425.resourcepackupdater.Config;
 import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
 import cn.zbx1425.resourcepackupdater.gui.gl.GlHelper;
+import cn.zbx1425.resourcepackupdater.io.network.SourceStats;
 import com.mojang.blaze3d.platform.InputConstants;
 import net.minecraft.client.Minecraft;
 
@@ -39,7 +41,7 @@ public class SelectSourceForm implements GlScreenForm {
             } else {
                 GlHelper.blit(30, 30 + 30 + i * 40, selectSourceFormWidth - 60, 30, 0xffc0d2db);
             }
-            String btnLabel = i == sourceSize - 1 ? "[Cancel Update]" : ResourcePackUpdater.CONFIG.sourceList.value.get(i).name;
+            String btnLabel = i == sourceSize - 1 ? "[Cancel Update]" : getSourceLabel(ResourcePackUpdater.CONFIG.sourceList.value.get(i));
             GlHelper.drawString(30 + 15, 30 + 30 + i * 40 + 5, selectSourceFormWidth - 90, 40, 20,
                     btnLabel, 0xff222222, false, false);
         }
@@ -84,6 +86,15 @@ public class SelectSourceForm implements GlScreenForm {
         return false;
     }
 
+    private static String getSourceLabel(Config.SourceProperty source) {
+        SourceStats.Entry stats = ResourcePackUpdater.CONFIG.sourceStats.get(source.baseUrl);
+        if (stats == null) return source.name;
+        if (stats.failures > 0) return source.name + " (Unreachable)";
+        if (stats.latencyMillis < 0) return source.name;
+        return source.name + " (" + stats.latencyMillis + " ms"
+                + (stats.bytesPerSecond > 0 ? ", " + (long)(stats.bytesPerSecond / 1024) + " KiB/s" : "") + ")";
+    }
+
     @Override
     public void reset() {
         selectedIndex = -1;
@@ -4,31 +4,55 @@ import cn.zbx1425.resourcepackupdater.Config;
 import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
 import cn.zbx1425.resourcepackupdater.gui.gl.GlHelper;
 import cn.zbx1425.resourcepackupdater.gui.GlProgressScreen;
+import cn.zbx1425.resourcepackupdater.io.network.BundleOutputStream;
+import cn.zbx1425.resourcepackupdater.io.network.DeltaOutputStream;
 import cn.zbx1425.resourcepackupdater.io.network.DownloadDispatcher;
 import cn.zbx1425.resourcepackupdater.io.network.DownloadTask;
+import cn.zbx1425.resourcepackupdater.io.network.MirrorSet;
 import cn.zbx1425.resourcepackupdater.io.network.PackOutputStream;
 import cn.zbx1425.resourcepackupdater.io.network.RemoteMetadata;
+import cn.zbx1425.resourcepackupdater.io.network.SegmentedDownload;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 public class Dispatcher {
@@ -36,6 +60,15 @@ public class Dispatcher {
     private RemoteMetadata remoteMetadata;
     private LocalMetadata localMetadata;
 
+    public Dispatcher() {
+    }
+
+    // For running single steps of a sync against metadata already at hand, as the tests do.
+    Dispatcher(RemoteMetadata remoteMetadata, LocalMetadata localMetadata) {
+        this.remoteMetadata = remoteMetadata;
+        this.localMetadata = localMetadata;
+    }
+
     public boolean runSync(String baseDir, Config.SourceProperty source, ProgressReceiver cb) throws Exception {
         try {
             if (source.baseUrl.isEmpty()) {
@@ -57,12 +90,33 @@ public class Dispatcher {
         } catch (Exception ex) {
             cb.setException(ex);
             return false;
+        } finally {
+            if (localMetadata != null && !PackWatcher.isWatching(localMetadata)) {
+                try {
+                    localMetadata.closeHashCache();
+                } catch (IOException ignored) { }
+            }
         }
     }
 
     private boolean runMetadataSync(String baseDir, Config.SourceProperty source, ProgressReceiver cb) throws Exception {
-        localMetadata = new LocalMetadata(baseDir);
-        remoteMetadata = new RemoteMetadata(source.baseUrl);
+        localMetadata = PackWatcher.acquireMetadata(baseDir);
+        List<String> mirrorUrls = ResourcePackUpdater.CONFIG.getMirrorsOf(source).stream().map(mirror -> mirror.baseUrl).toList();
+        String metadataUrl = source.baseUrl;
+        if (mirrorUrls.size() > 1) {
+            cb.printLog("Finding the fastest of " + mirrorUrls.size() + " mirrors ...");
+            try {
+                metadataUrl = MirrorSet.findFastest(mirrorUrls, source.hasDirHash ? "/metadata.sha1" : "/metadata.json");
+                cb.amendLastLog("Done");
+                cb.printLog("Metadata from: " + metadataUrl);
+            } catch (IOException ex) {
+                // Probes can fail where a plain GET would not (a CDN blocking HEAD, say), so only the fetch below decides
+                ResourcePackUpdater.LOGGER.warn("Probing mirrors failed", ex);
+                cb.amendLastLog("Failed");
+                cb.printLog("Metadata from: " + metadataUrl);
+            }
+        }
+        remoteMetadata = new RemoteMetadata(metadataUrl);
 
         byte[] remoteChecksum = null;
 
@@ -81,8 +135,14 @@ public class Dispatcher {
         // Now, either checksum or full metadata is fetched, with the encryption switch.
 
         cb.printLog("Scanning local files ...");
-        localMetadata.scanDir(remoteMetadata.encrypt, cb);
-        cb.amendLastLog("Done");
+        int changedPaths = PackWatcher.refresh(localMetadata, cb);
+        if (changedPaths < 0) {
+            PackWatcher.watch(localMetadata);
+            localMetadata.scanDir(remoteMetadata.encrypt, cb);
+            cb.amendLastLog("Done");
+        } else {
+            cb.amendLastLog("Done (" + changedPaths + " changed since last sync)");
+        }
         byte[] localChecksum = localMetadata.getDirChecksum();
         cb.printLog("Local directory checksum is " + Hex.encodeHexString(localChecksum));
 
@@ -97,6 +157,11 @@ public class Dispatcher {
                 cb.printLog("");
                 cb.printLog("Done! Thank you.");
                 return true;
+            } else if (remoteMetadata.treeRoot != null) {
+                cb.printLog("Downloading metadata of changed directories ...");
+                int shardsFetched = remoteMetadata.fetchTree(localMetadata.getMerkleTree(), cb);
+                cb.amendLastLog("Done (" + shardsFetched + " fetched)");
+                cb.setProgress(0, 0);
             } else {
                 // We haven't fetched the full metadata yet, do it now.
                 cb.printLog("Downloading remote metadata ...");
@@ -106,38 +171,87 @@ public class Dispatcher {
             }
         }
 
-        List<String> dirsToCreate = localMetadata.getDirsToCreate(remoteMetadata);
-        List<String> dirsToDelete = localMetadata.getDirsToDelete(remoteMetadata);
-        List<String> filesToCreate = localMetadata.getFilesToCreate(remoteMetadata);
-        List<String> filesToUpdate = localMetadata.getFilesToUpdate(remoteMetadata);
-        List<String> filesToDelete = localMetadata.getFilesToDelete(remoteMetadata);
+        SyncPlan plan = new SyncPlan(localMetadata, remoteMetadata);
         cb.printLog(String.format("Found %-3d new directories, %-3d to delete.",
-                dirsToCreate.size(), dirsToDelete.size()));
+                plan.dirsToCreate.size(), plan.dirsToDelete.size()));
         cb.printLog(String.format("Found %-3d new files, %-3d to update, %-3d to delete.",
-                filesToCreate.size(), filesToUpdate.size(), filesToDelete.size()));
+                plan.filesToCreate.size(), plan.filesToUpdate.size(), plan.filesToDelete.size()));
+        if (plan.bytesToReuse > 0) {
+            cb.printLog(String.format("%.2f MiB to download, %.2f MiB copied from files already present.",
+                    plan.getBytesToDownload() / 1024f / 1024f, plan.bytesToReuse / 1024f / 1024f));
+        } else {
+            cb.printLog(String.format("%.2f MiB to download.", plan.getBytesToDownload() / 1024f / 1024f));
+        }
 
         cb.printLog("Creating & deleting directories and files ...");
-        for (String dir : dirsToCreate) {
-            Files.createDirectories(Paths.get(baseDir, dir));
-        }
-        for (String file : filesToDelete) {
-            Files.deleteIfExists(Paths.get(baseDir, file));
-        }
-        for (String dir : dirsToDelete) {
-            Path dirPath = Paths.get(baseDir, dir);
-            if (Files.isDirectory(dirPath)) FileUtils.deleteDirectory(dirPath.toFile());
-        }
+        runInParallel(plan.dirsToCreate, dir -> Files.createDirectories(Paths.get(baseDir, dir)), cb);
+        // Before anything is deleted, as the sources may be among the deleted files.
+        Set<String> deletedFiles = new HashSet<>(plan.filesToDelete);
+        List<String> failedCopies = Collections.synchronizedList(new ArrayList<>());
+        runInParallel(new ArrayList<>(plan.filesToReuse.keySet()), file -> {
+            List<String> targets = plan.filesToReuse.get(file);
+            for (int i = 0; i < targets.size(); i++) {
+                try {
+                    copyLocalFile(baseDir, file, targets.get(i), i == targets.size() - 1 && deletedFiles.contains(file));
+                } catch (IOException ex) {
+                    ResourcePackUpdater.LOGGER.warn("Cannot copy " + file + " to " + targets.get(i) + ", downloading it instead", ex);
+                    failedCopies.add(targets.get(i));
+                }
+            }
+        }, cb);
+        List<String> looseFilesToDelete = plan.getLooseFilesToDelete();
+        List<String> topDirsToDelete = plan.getTopDirsToDelete();
+        runInParallel(Stream.concat(looseFilesToDelete.stream(), topDirsToDelete.stream()).toList(), path -> {
+            Path fullPath = Paths.get(baseDir, path);
+            if (Files.isDirectory(fullPath)) {
+                FileUtils.deleteDirectory(fullPath.toFile());
+            } else {
+                Files.deleteIfExists(fullPath);
+            }
+            localMetadata.onPathDeleted(path);
+        }, cb);
         cb.amendLastLog("Done");
 
+        List<String> filesToDownload = Stream.concat(plan.getFilesToDownload().stream(), failedCopies.stream()).toList();
+        List<String> inlineFiles = filesToDownload.stream().filter(file -> remoteMetadata.files.get(file).content != null).toList();
+        if (!inlineFiles.isEmpty()) {
+            cb.printLog("Writing files inlined in metadata ...");
+            runInParallel(inlineFiles, file -> {
+                try (OutputStream output = createPackOutputStream(baseDir, file)) {
+                    output.write(remoteMetadata.files.get(file).content);
+                }
+            }, cb);
+            cb.amendLastLog("Done");
+        }
+
         remoteMetadata.beginDownloads(cb);
         cb.printLog("Downloading files ...");
         DownloadDispatcher downloadDispatcher = new DownloadDispatcher(cb);
-        for (String file : Stream.concat(filesToCreate.stream(), filesToUpdate.stream()).toList()) {
-            DownloadTask task = new DownloadTask(downloadDispatcher,
-                    remoteMetadata.baseUrl + "/dist/" + file, file, remoteMetadata.files.get(file).size);
-            downloadDispatcher.dispatch(task, () -> new PackOutputStream(Paths.get(baseDir, file),
-                    remoteMetadata.encrypt, localMetadata.hashCache, remoteMetadata.files.get(file).hash));
+        if (mirrorUrls.size() > 1) downloadDispatcher.mirrors = new MirrorSet(metadataUrl, mirrorUrls);
+        List<String> bundleFiles = new ArrayList<>();
+        long bundleBytes = 0;
+        for (String file : filesToDownload) {
+            FileProperty fileProperty = remoteMetadata.files.get(file);
+            if (fileProperty.content != null) continue;
+            byte[] localHash = fileProperty.deltas == null ? null : localMetadata.files.getHash(file);
+            Long patchSize = localHash == null ? null : fileProperty.deltas.get(Hex.encodeHexString(localHash));
+            if (patchSize != null && patchSize < fileProperty.size) {
+                dispatchDelta(downloadDispatcher, baseDir, file, Hex.encodeHexString(localHash), patchSize);
+                continue;
+            }
+            if (!remoteMetadata.bundle || fileProperty.size > BUNDLE_FILE_MAX_SIZE) {
+                dispatchFile(downloadDispatcher, baseDir, file);
+                continue;
+            }
+            bundleFiles.add(file);
+            bundleBytes += fileProperty.size;
+            if (bundleFiles.size() >= BUNDLE_MAX_FILES || bundleBytes >= BUNDLE_MAX_BYTES) {
+                dispatchBundle(downloadDispatcher, baseDir, bundleFiles);
+                bundleFiles = new ArrayList<>();
+                bundleBytes = 0;
+            }
         }
+        if (!bundleFiles.isEmpty()) dispatchBundle(downloadDispatcher, baseDir, bundleFiles);
         while (!downloadDispatcher.tasksFinished()) {
             downloadDispatcher.updateSummary();
             ((GlProgressScreen)cb).redrawScreen(true);
@@ -145,16 +259,141 @@ public class Dispatcher {
         }
         remoteMetadata.downloadedBytes += downloadDispatcher.downloadedBytes;
         downloadDispatcher.close();
+        if (!plan.filesToCopy.isEmpty()) {
+            cb.printLog("Copying files with identical content ...");
+            runInParallel(new ArrayList<>(plan.filesToCopy.keySet()), file -> {
+                for (String target : plan.filesToCopy.get(file)) copyLocalFile(baseDir, file, target, false);
+            }, cb);
+            cb.amendLastLog("Done");
+        }
         localMetadata.saveHashCache();
 
         cb.setInfo("", "");
         cb.setProgress(1, 1);
         cb.printLog("");
         remoteMetadata.endDownloads(cb);
+        recordThroughput(source, remoteMetadata.downloadedBytes, System.currentTimeMillis() - remoteMetadata.downloadStartTime);
         cb.printLog("Done! Thank you.");
         return true;
     }
 
+    private static final long BUNDLE_FILE_MAX_SIZE = 64 * 1024;
+    private static final int BUNDLE_MAX_FILES = 256;
+    private static final long BUNDLE_MAX_BYTES = 4 * 1024 * 1024;
+
+    private PackOutputStream createPackOutputStream(String baseDir, String file) {
+        return new PackOutputStream(Paths.get(baseDir, file), remoteMetadata.encrypt, localMetadata, remoteMetadata.files.get(file).hash);
+    }
+
+    // The content is known to match the remote hash already, so it is recorded as such without hashing it again.
+    // Encrypted packs hold encrypted copies, which stay valid as they are. Copies go through a temporary file
+    // like downloads do; hard links are not used, as an in-place edit of one path would then show up in both.
+    private void copyLocalFile(String baseDir, String source, String target, boolean move) throws IOException {
+        Path sourcePath = Paths.get(baseDir, source);
+        Path targetPath = Paths.get(baseDir, target);
+        if (move) {
+            Files.move(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+            localMetadata.onPathDeleted(source);
+        } else {
+            Path tempFile = targetPath.resolveSibling(targetPath.getFileName() + ".rpu-tmp");
+            try {
+                Files.copy(sourcePath, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tempFile, targetPath, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                Files.deleteIfExists(tempFile);
+                throw ex;
+            }
+        }
+        byte[] hash = remoteMetadata.files.get(target).hash;
+        localMetadata.hashCache.putDigest(targetPath.toFile(), hash);
+        localMetadata.onFileWritten(targetPath, hash);
+    }
+
+    private void dispatchFile(DownloadDispatcher downloadDispatcher, String baseDir, String file) {
+        DownloadTask task = new DownloadTask(downloadDispatcher,
+                remoteMetadata.baseUrl + "/dist/" + file, file, remoteMetadata.files.get(file).size);
+        downloadDispatcher.dispatch(task, () -> createPackOutputStream(baseDir, file));
+    }
+
+    // Patches sit at /delta/<base SHA-1>/<path>. Whatever goes wrong with one, including a result that does
+    // not match the new hash because the local file was edited, the whole file is downloaded instead.
+    private void dispatchDelta(DownloadDispatcher downloadDispatcher, String baseDir, String file, String baseHash, long patchSize) {
+        DownloadTask task = new DownloadTask(downloadDispatcher,
+                remoteMetadata.baseUrl + "/delta/" + baseHash + "/" + file, file + " (patch)", patchSize);
+        task.fallback = () -> dispatchFile(downloadDispatcher, baseDir, file);
+        downloadDispatcher.dispatch(task, () -> new DeltaOutputStream(Paths.get(baseDir, file), createPackOutputStream(baseDir, file)));
+    }
+
+    // Small files are requested from the bundle endpoint in batches, a POST listing one path per line.
+    // Anything the server leaves out of its response is then fetched on its own.
+    void dispatchBundle(DownloadDispatcher downloadDispatcher, String baseDir, List<String> files) {
+        Map<String, Supplier<OutputStream>> remaining = new ConcurrentHashMap<>();
+        long bundleBytes = 0;
+        for (String file : files) {
+            remaining.put(file, () -> createPackOutputStream(baseDir, file));
+            bundleBytes += remoteMetadata.files.get(file).size;
+        }
+        // A retry only asks for the files earlier attempts did not already write.
+        DownloadTask task = new DownloadTask(downloadDispatcher, remoteMetadata.baseUrl + "/bundle",
+                String.format("(%d files) %s ...", files.size(), files.get(0)), bundleBytes,
+                () -> String.join("\n", remaining.keySet()));
+        downloadDispatcher.dispatch(task, () -> new BundleOutputStream(remaining, missingFiles -> {
+            for (String file : missingFiles) {
+                if (remaining.remove(file) == null) continue;
+                // Already counted as part of the bundle, and about to be counted again by its own task.
+                downloadDispatcher.totalBytes.addAndGet(-remoteMetadata.files.get(file).size);
+                dispatchFile(downloadDispatcher, baseDir, file);
+            }
+        }));
+    }
+
+    private interface PathAction {
+        void run(String path) throws IOException;
+    }
+
+    // Runs independent file system operations on a pool, while progress is reported from this thread.
+    private void runInParallel(List<String> paths, PathAction action, ProgressReceiver cb) throws Exception {
+        if (paths.isEmpty()) return;
+        int threadCount = Math.min(Math.min(8, Runtime.getRuntime().availableProcessors() * 2), paths.size());
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        // Handed out in list order, so callers can have the longest jobs start first.
+        AtomicInteger nextPath = new AtomicInteger();
+        AtomicInteger pathsDone = new AtomicInteger();
+        try {
+            CompletableFuture<?>[] workers = new CompletableFuture<?>[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                workers[i] = CompletableFuture.runAsync(() -> {
+                    int index;
+                    while ((index = nextPath.getAndIncrement()) < paths.size()) {
+                        try {
+                            action.run(paths.get(index));
+                        } catch (IOException ex) {
+                            // Leaves nothing for the other workers to pick up.
+                            nextPath.set(paths.size());
+                            throw new UncheckedIOException(ex);
+                        }
+                        pathsDone.incrementAndGet();
+                    }
+                }, pool);
+            }
+            CompletableFuture<Void> task = CompletableFuture.allOf(workers);
+            while (true) {
+                try {
+                    task.get(100, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException ignored) {
+                    cb.setProgress(pathsDone.get() * 1f / paths.size(), 0);
+                    cb.setInfo(pathsDone.get() + " / " + paths.size(), "");
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof UncheckedIOException uioe) throw uioe.getCause();
+                    throw ex;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
     private boolean runArchiveSync(String baseDir, Config.SourceProperty source, ProgressReceiver cb) throws Exception {
         cb.printLog("Using archive-manifest source mode.");
         cb.printLog("Loading latest pack manifest ...");
@@ -172,30 +411,45 @@ public class Dispatcher {
             return true;
         }
 
+        // With what was written last time on record, only the entries that changed need to be touched,
+        // which a ZipFile can tell from its central directory before anything is extracted.
+        Map<String, ArchiveFileState> previousStates = readArchiveFileStates(statePath);
+        if (ResourcePackUpdater.CONFIG.streamArchiveInstall.value && previousStates.isEmpty()) {
+            cb.printLog("Downloading and extracting pack archive ...");
+            try {
+                long downloadStartTime = System.currentTimeMillis();
+                long archiveBytes = installArchiveStreaming(manifest, basePath, statePath, cb);
+                recordThroughput(source, archiveBytes, System.currentTimeMillis() - downloadStartTime);
+                cb.amendLastLog("Done");
+                cb.setInfo("", "");
+                cb.setProgress(1, 1);
+                cb.printLog("");
+                cb.printLog("Done! Thank you.");
+                return true;
+            } catch (ArchiveChecksumException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                // The file based path below can resume a dropped transfer, which a streamed one cannot.
+                cb.printLog("Streamed install failed, downloading to a file instead: " + ex);
+            }
+        }
+
         cb.printLog("Downloading pack archive ...");
         Path tempZip = Files.createTempFile("rpu-pack-", ".zip");
-        Path tempExtract = null;
         try {
+            long downloadStartTime = System.currentTimeMillis();
             downloadArchiveToFile(manifest, tempZip, cb);
+            recordThroughput(source, Files.size(tempZip), System.currentTimeMillis() - downloadStartTime);
             cb.amendLastLog("Done");
             cb.printLog("Verifying archive checksum ...");
             verifyArchiveChecksum(tempZip, manifest.sha1);
             cb.amendLastLog("Done");
 
-            cb.printLog("Extracting archive ...");
-            tempExtract = extractZipToTempDir(tempZip);
-            Path packRoot = findPackRoot(tempExtract);
-            cb.amendLastLog("Done");
-
             cb.printLog("Applying resource pack files ...");
-            replaceDirectory(packRoot, basePath);
-            writeArchiveState(statePath, manifest);
-            cb.amendLastLog("Done");
+            Map<String, ArchiveFileState> fileStates = applyArchive(tempZip, basePath, statePath, previousStates, cb);
+            writeArchiveState(statePath, manifest, fileStates);
         } finally {
             Files.deleteIfExists(tempZip);
-            if (tempExtract != null && Files.isDirectory(tempExtract)) {
-                FileUtils.deleteDirectory(tempExtract.toFile());
-            }
         }
 
         cb.setInfo("", "");
@@ -205,6 +459,12 @@ public class Dispatcher {
         return true;
     }
 
+    // Kept for picking the fastest source on later launches.
+    private static void recordThroughput(Config.SourceProperty source, long bytes, long elapsedMillis) {
+        ResourcePackUpdater.CONFIG.sourceStats.onDownload(source.baseUrl, bytes, elapsedMillis);
+        ResourcePackUpdater.CONFIG.sourceStats.save();
+    }
+
     private ArchiveManifest fetchArchiveManifest(String manifestUrl) throws Exception {
         HttpResponse<InputStream> response = DownloadTask.sendHttpRequest(URI.create(manifestUrl));
         if (response.statusCode() >= 400) {
@@ -228,32 +488,160 @@ public class Dispatcher {
         );
     }
 
+    private static final int ARCHIVE_MAX_RETRIES = 8;
+
     private void downloadArchiveToFile(ArchiveManifest manifest, Path targetZip, ProgressReceiver cb) throws Exception {
-        HttpResponse<InputStream> response = DownloadTask.sendHttpRequest(URI.create(manifest.url));
-        if (response.statusCode() >= 400) {
-            throw new IOException("Server returned HTTP " + response.statusCode() + " while downloading archive: " + manifest.url);
+        URI archiveUri = URI.create(manifest.url);
+        if (DownloadTask.shouldSegment(manifest.sizeBytes)) {
+            try {
+                downloadArchiveSegmented(archiveUri, manifest.sizeBytes, targetZip, cb);
+                return;
+            } catch (IOException ex) {
+                cb.printLog("Segmented download failed, falling back to a single connection: " + ex);
+            }
+        }
+        // Set once the server has offered byte ranges, after which a dropped transfer continues from the partial file.
+        String rangeValidator = null;
+        for (int attempt = 1; ; attempt++) {
+            long resumeFrom = rangeValidator != null ? Files.size(targetZip) : 0;
+            try {
+                HttpResponse<InputStream> response = DownloadTask.sendHttpRequest(archiveUri, resumeFrom, rangeValidator);
+                if (response.statusCode() >= 400) {
+                    if (resumeFrom > 0) rangeValidator = null;
+                    throw new IOException("Server returned HTTP " + response.statusCode() + " while downloading archive: " + manifest.url);
+                }
+                long offset;
+                try {
+                    offset = DownloadTask.getRangeStart(response.statusCode(), response.headers(), resumeFrom);
+                } catch (IOException ex) {
+                    rangeValidator = null;
+                    response.body().close();
+                    throw ex;
+                }
+                if (offset == 0) rangeValidator = DownloadTask.getRangeValidator(response.headers());
+                long contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+                long totalBytes = contentLength >= 0 ? offset + contentLength : manifest.sizeBytes;
+                long downloadedBytes = offset;
+
+                try (InputStream inputStream = new BufferedInputStream(DownloadTask.unwrapHttpResponse(response));
+                     OutputStream outputStream = offset > 0
+                             ? Files.newOutputStream(targetZip, StandardOpenOption.APPEND)
+                             : Files.newOutputStream(targetZip)) {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, read);
+                        downloadedBytes += read;
+                        if (totalBytes > 0) {
+                            cb.setProgress(downloadedBytes * 1f / totalBytes, 0);
+                            cb.setInfo(String.format("%.2f%%", downloadedBytes * 100f / totalBytes),
+                                    String.format(": %5d KiB / %5d KiB", downloadedBytes / 1024, totalBytes / 1024));
+                        } else {
+                            cb.setInfo("", String.format(": %5d KiB downloaded", downloadedBytes / 1024));
+                        }
+                    }
+                }
+                return;
+            } catch (IOException ex) {
+                if (attempt >= ARCHIVE_MAX_RETRIES) throw ex;
+                cb.printLog(String.format("Retry (%d/%d) due to error: %s", attempt, ARCHIVE_MAX_RETRIES, ex));
+                if (rangeValidator != null) cb.printLog(String.format("Resuming from %d KiB ...", Files.size(targetZip) / 1024));
+            }
         }
-        long totalBytes = Long.parseLong(response.headers().firstValue("Content-Length").orElse(Long.toString(manifest.sizeBytes)));
-        long downloadedBytes = 0;
+    }
 
-        try (InputStream inputStream = new BufferedInputStream(DownloadTask.unwrapHttpResponse(response));
-             OutputStream outputStream = Files.newOutputStream(targetZip)) {
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, read);
-                downloadedBytes += read;
-                if (totalBytes > 0) {
-                    cb.setProgress(downloadedBytes * 1f / totalBytes, 0);
-                    cb.setInfo(String.format("%.2f%%", downloadedBytes * 100f / totalBytes),
-                            String.format(": %5d KiB / %5d KiB", downloadedBytes / 1024, totalBytes / 1024));
-                } else {
-                    cb.setInfo("", String.format(": %5d KiB downloaded", downloadedBytes / 1024));
+    private void downloadArchiveSegmented(URI archiveUri, long totalBytes, Path targetZip, ProgressReceiver cb) throws Exception {
+        AtomicLong downloadedBytes = new AtomicLong();
+        SegmentedDownload download = new SegmentedDownload(archiveUri, totalBytes, targetZip,
+                ResourcePackUpdater.CONFIG.downloadSegments.value, downloadedBytes::addAndGet);
+        CompletableFuture<Void> future = download.start();
+        try {
+            while (true) {
+                try {
+                    future.get(100, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (TimeoutException ignored) {
                 }
+                long downloaded = downloadedBytes.get();
+                cb.setProgress(downloaded * 1f / totalBytes, 0);
+                cb.setInfo(String.format("%.2f%%", downloaded * 100f / totalBytes),
+                        String.format(": %5d KiB / %5d KiB", downloaded / 1024, totalBytes / 1024));
             }
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ioEx ? ioEx : new IOException(ex.getCause());
+        } finally {
+            // Stops the remaining transfers when leaving early, e.g. on ESC.
+            download.cancel();
         }
     }
 
+    // One pass instead of four: the response is hashed on its way into a ZipInputStream, whose entries are
+    // written into a staging directory beside the pack as they arrive. Only once the hash has matched is the
+    // staging directory renamed into place; otherwise it is thrown away. Returns the size of the archive.
+    private long installArchiveStreaming(ArchiveManifest manifest, Path basePath, Path statePath, ProgressReceiver cb) throws Exception {
+        Path stagingDir = basePath.resolveSibling(basePath.getFileName() + ".rpu-staging");
+        Path oldDir = basePath.resolveSibling(basePath.getFileName() + ".rpu-old");
+        deleteDirectoryIfExists(stagingDir);
+        Files.createDirectories(stagingDir);
+        try {
+            HttpResponse<InputStream> response = DownloadTask.sendHttpRequest(URI.create(manifest.url), 0, null);
+            if (response.statusCode() >= 400) {
+                response.body().close();
+                throw new IOException("Server returned HTTP " + response.statusCode() + " while downloading archive: " + manifest.url);
+            }
+            long contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+            long totalBytes = contentLength >= 0 ? contentLength : manifest.sizeBytes;
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            Map<String, ArchiveFileState> entryStates = new HashMap<>();
+            long archiveBytes;
+            try (CountingInputStream counter = new CountingInputStream(DownloadTask.unwrapHttpResponse(response))) {
+                DigestInputStream digestStream = new DigestInputStream(counter, digest);
+                extractZip(new ZipInputStream(new BufferedInputStream(digestStream)), stagingDir, entryStates, () -> {
+                    long downloadedBytes = counter.getByteCount();
+                    if (totalBytes > 0) {
+                        cb.setProgress(downloadedBytes * 1f / totalBytes, 0);
+                        cb.setInfo(String.format("%.2f%%", downloadedBytes * 100f / totalBytes),
+                                String.format(": %5d KiB / %5d KiB", downloadedBytes / 1024, totalBytes / 1024));
+                    } else {
+                        cb.setInfo("", String.format(": %5d KiB downloaded", downloadedBytes / 1024));
+                    }
+                });
+                // The central directory after the last entry is part of the hash too.
+                digestStream.transferTo(OutputStream.nullOutputStream());
+                archiveBytes = counter.getByteCount();
+            }
+            checkArchiveChecksum(digest, manifest.sha1);
+
+            Path packRoot = findPackRoot(stagingDir);
+            deleteDirectoryIfExists(oldDir);
+            if (Files.exists(basePath)) Files.move(basePath, oldDir);
+            try {
+                Files.move(packRoot, basePath);
+            } catch (IOException ex) {
+                if (Files.exists(oldDir)) Files.move(oldDir, basePath);
+                throw ex;
+            }
+            // The renames leave mtimes alone, so the files can be stat'ed where they have ended up.
+            String rootPrefix = packRoot.equals(stagingDir) ? "" : stagingDir.relativize(packRoot) + "/";
+            Map<String, ArchiveFileState> fileStates = new HashMap<>();
+            for (Map.Entry<String, ArchiveFileState> entry : entryStates.entrySet()) {
+                if (!entry.getKey().startsWith(rootPrefix)) continue;
+                String path = entry.getKey().substring(rootPrefix.length());
+                fileStates.put(path, new ArchiveFileState(entry.getValue().size, entry.getValue().crc,
+                        Files.getLastModifiedTime(basePath.resolve(path)).toMillis()));
+            }
+            writeArchiveState(statePath, manifest, fileStates);
+            deleteDirectoryIfExists(oldDir);
+            return archiveBytes;
+        } finally {
+            deleteDirectoryIfExists(stagingDir);
+        }
+    }
+
+    private static void deleteDirectoryIfExists(Path dir) throws IOException {
+        if (Files.isDirectory(dir)) FileUtils.deleteDirectory(dir.toFile());
+    }
+
     private void verifyArchiveChecksum(Path archivePath, String expectedSha1) throws Exception {
         if (expectedSha1 == null || expectedSha1.isBlank()) {
             return;
@@ -266,31 +654,53 @@ public class Dispatcher {
                 digest.update(buffer, 0, read);
             }
         }
+        checkArchiveChecksum(digest, expectedSha1);
+    }
+
+    private static void checkArchiveChecksum(MessageDigest digest, String expectedSha1) throws IOException {
+        if (expectedSha1 == null || expectedSha1.isBlank()) {
+            return;
+        }
         String actualSha1 = Hex.encodeHexString(digest.digest());
         if (!actualSha1.equalsIgnoreCase(expectedSha1)) {
-            throw new IOException("Archive checksum mismatch. Expected " + expectedSha1 + " but got " + actualSha1);
+            throw new ArchiveChecksumException("Archive checksum mismatch. Expected " + expectedSha1 + " but got " + actualSha1);
         }
     }
 
-    private Path extractZipToTempDir(Path zipPath) throws IOException {
-        Path extractDir = Files.createTempDirectory("rpu-unzip-");
-        try (ZipInputStream zis = new ZipInputStream(Files.newInputStream(zipPath))) {
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null) {
-                Path output = extractDir.resolve(entry.getName()).normalize();
-                if (!output.startsWith(extractDir)) {
-                    throw new IOException("Invalid ZIP entry path: " + entry.getName());
-                }
-                if (entry.isDirectory()) {
-                    Files.createDirectories(output);
-                } else {
-                    Path parent = output.getParent();
-                    if (parent != null) Files.createDirectories(parent);
-                    Files.copy(zis, output, StandardCopyOption.REPLACE_EXISTING);
+    // Leaves zis open, as the streamed install still reads what follows the entries.
+    // onProgress runs after each entry and every 1 MiB within one. The size and CRC of each file written
+    // go into entryStates by entry name, with no mtime yet.
+    private void extractZip(ZipInputStream zis, Path extractDir, Map<String, ArchiveFileState> entryStates,
+                            Runnable onProgress) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            Path output = extractDir.resolve(entry.getName()).normalize();
+            if (!output.startsWith(extractDir)) {
+                throw new IOException("Invalid ZIP entry path: " + entry.getName());
+            }
+            if (entry.isDirectory()) {
+                Files.createDirectories(output);
+            } else {
+                Path parent = output.getParent();
+                if (parent != null) Files.createDirectories(parent);
+                try (OutputStream outputStream = Files.newOutputStream(output)) {
+                    long sinceProgress = 0;
+                    int read;
+                    while ((read = zis.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, read);
+                        sinceProgress += read;
+                        if (sinceProgress >= 1024 * 1024) {
+                            onProgress.run();
+                            sinceProgress = 0;
+                        }
+                    }
                 }
+                // Only known once the entry has been read through, as they may follow its data.
+                entryStates.put(entry.getName(), new ArchiveFileState(entry.getSize(), entry.getCrc(), 0));
             }
+            onProgress.run();
         }
-        return extractDir;
     }
 
     private Path findPackRoot(Path extractDir) throws IOException {
@@ -310,25 +720,135 @@ public class Dispatcher {
         return extractDir;
     }
 
-    private void replaceDirectory(Path sourceRoot, Path targetRoot) throws IOException {
-        if (Files.exists(targetRoot)) {
-            FileUtils.deleteDirectory(targetRoot.toFile());
-        }
-        Files.createDirectories(targetRoot);
-        try (Stream<Path> walk = Files.walk(sourceRoot)) {
-            for (Path sourcePath : walk.toList()) {
-                Path relativePath = sourceRoot.relativize(sourcePath);
-                if (relativePath.toString().isEmpty()) continue;
-                Path targetPath = targetRoot.resolve(relativePath.toString());
-                if (Files.isDirectory(sourcePath)) {
-                    Files.createDirectories(targetPath);
-                } else {
-                    Path parent = targetPath.getParent();
-                    if (parent != null) Files.createDirectories(parent);
-                    Files.copy(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+    // Same rule as findPackRoot, read off the central directory. Returns "" or the single top-level folder with a slash.
+    private static String findPackRootPrefix(ZipFile zipFile) {
+        if (zipFile.getEntry("pack.mcmeta") != null) return "";
+        Set<String> topLevelNames = new HashSet<>();
+        for (ZipEntry entry : Collections.list(zipFile.entries())) {
+            int slash = entry.getName().indexOf('/');
+            topLevelNames.add(slash < 0 ? entry.getName() : entry.getName().substring(0, slash + 1));
+        }
+        if (topLevelNames.size() == 1) {
+            String topLevelName = topLevelNames.iterator().next();
+            if (topLevelName.endsWith("/") && zipFile.getEntry(topLevelName + "pack.mcmeta") != null) {
+                return topLevelName;
+            }
+        }
+        return "";
+    }
+
+    // Brings basePath in line with the archive in place. A file is rewritten only if its entry differs in
+    // size or CRC from what was last written there, or the file is no longer as it was left; files the
+    // archive no longer has are removed. Everything else keeps its mtime, so the hash cache stays valid.
+    // Should this be cut short, the old state file makes the next sync come back and finish the job.
+    // The entries to write are inflated on several threads at once, largest first so that none of them is
+    // left running alone at the end. Each thread only holds one entry's buffer at a time.
+    Map<String, ArchiveFileState> applyArchive(Path zipPath, Path basePath, Path statePath,
+                                               Map<String, ArchiveFileState> previousStates, ProgressReceiver cb) throws Exception {
+        Map<String, ArchiveFileState> fileStates = new ConcurrentHashMap<>();
+        Set<String> archiveDirs = new HashSet<>();
+        Map<String, ZipEntry> entriesToWrite = new HashMap<>();
+        int removed = 0;
+        Files.createDirectories(basePath);
+        try (ZipFile zipFile = new ZipFile(zipPath.toFile())) {
+            String rootPrefix = findPackRootPrefix(zipFile);
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                if (!entry.getName().startsWith(rootPrefix)) continue;
+                String path = entry.getName().substring(rootPrefix.length());
+                if (path.isEmpty()) continue;
+                Path target = basePath.resolve(path).normalize();
+                if (!target.startsWith(basePath) || target.equals(basePath)) {
+                    throw new IOException("Invalid ZIP entry path: " + entry.getName());
+                }
+                // A file left where the archive now has a folder has to go before anything is created under it.
+                for (Path parent = target.getParent(); !parent.equals(basePath); parent = parent.getParent()) {
+                    if (archiveDirs.add(getArchivePath(basePath, parent)) && Files.isRegularFile(parent, LinkOption.NOFOLLOW_LINKS)) {
+                        Files.delete(parent);
+                        removed++;
+                    }
+                }
+                if (entry.isDirectory()) {
+                    if (archiveDirs.add(getArchivePath(basePath, target)) && Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS)) {
+                        Files.delete(target);
+                        removed++;
+                    }
+                    Files.createDirectories(target);
+                    continue;
+                }
+                // Keyed the way the streamed install names them, which is what the state file carries.
+                path = getArchivePath(basePath, target);
+
+                ArchiveFileState previous = previousStates.get(path);
+                if (previous != null && previous.size == entry.getSize() && previous.crc == entry.getCrc()
+                        && previous.isUnchanged(target)) {
+                    fileStates.put(path, previous);
+                    continue;
+                }
+                if (Files.isDirectory(target)) FileUtils.deleteDirectory(target.toFile());
+                Files.createDirectories(target.getParent());
+                entriesToWrite.put(path, entry);
+            }
+
+            List<String> pathsToWrite = new ArrayList<>(entriesToWrite.keySet());
+            pathsToWrite.sort(Comparator.comparingLong((String path) -> entriesToWrite.get(path).getCompressedSize()).reversed());
+            runInParallel(pathsToWrite, path -> {
+                ZipEntry entry = entriesToWrite.get(path);
+                Path target = basePath.resolve(path);
+                Path tempFile = target.resolveSibling(target.getFileName() + ".rpu-tmp");
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    Files.copy(inputStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+                fileStates.put(path, new ArchiveFileState(entry.getSize(), entry.getCrc(),
+                        Files.getLastModifiedTime(target).toMillis()));
+            }, cb);
+        }
+
+        // Deepest first, so a folder has been emptied by the time it is reached.
+        List<Path> existingPaths;
+        try (Stream<Path> walk = Files.walk(basePath)) {
+            existingPaths = walk.sorted(Collections.reverseOrder()).toList();
+        }
+        for (Path existingPath : existingPaths) {
+            if (existingPath.equals(basePath) || existingPath.equals(statePath)) continue;
+            String path = getArchivePath(basePath, existingPath);
+            if (path.equals(LocalMetadata.HASH_CACHE_FILE_NAME) || path.equals(LocalMetadata.HASH_CACHE_INDEX_FILE_NAME)) continue;
+            if (Files.isDirectory(existingPath)) {
+                if (archiveDirs.contains(path)) continue;
+                try {
+                    Files.delete(existingPath);
+                } catch (DirectoryNotEmptyException ignored) {
                 }
+            } else if (!fileStates.containsKey(path)) {
+                Files.delete(existingPath);
+                removed++;
+            }
+        }
+        cb.amendLastLog("Done");
+        cb.printLog(String.format("%d files written, %d removed, %d unchanged.",
+                entriesToWrite.size(), removed, fileStates.size() - entriesToWrite.size()));
+        return fileStates;
+    }
+
+    private static String getArchivePath(Path basePath, Path path) {
+        return basePath.relativize(path).toString().replace('\\', '/');
+    }
+
+    private Map<String, ArchiveFileState> readArchiveFileStates(Path statePath) {
+        Map<String, ArchiveFileState> fileStates = new HashMap<>();
+        if (!Files.isRegularFile(statePath)) return fileStates;
+        try {
+            JsonObject state = ResourcePackUpdater.JSON_PARSER.parse(Files.readString(statePath)).getAsJsonObject();
+            if (!state.has("files")) return fileStates;
+            for (Map.Entry<String, JsonElement> entry : state.getAsJsonObject("files").entrySet()) {
+                JsonArray values = entry.getValue().getAsJsonArray();
+                fileStates.put(entry.getKey(), new ArchiveFileState(values.get(0).getAsLong(), values.get(1).getAsLong(), values.get(2).getAsLong()));
             }
+        } catch (Exception ex) {
+            ResourcePackUpdater.LOGGER.warn("Cannot read archive file states, rewriting all files", ex);
+            fileStates.clear();
         }
+        return fileStates;
     }
 
     private boolean isArchiveUpToDate(Path basePath, Path statePath, ArchiveManifest manifest) {
@@ -346,7 +866,7 @@ public class Dispatcher {
         }
     }
 
-    private void writeArchiveState(Path statePath, ArchiveManifest manifest) throws IOException {
+    private void writeArchiveState(Path statePath, ArchiveManifest manifest, Map<String, ArchiveFileState> fileStates) throws IOException {
         JsonObject state = new JsonObject();
         state.addProperty("name", manifest.name);
         state.addProperty("version", manifest.version);
@@ -354,11 +874,50 @@ public class Dispatcher {
         state.addProperty("sha1", manifest.sha1);
         state.addProperty("sizeBytes", manifest.sizeBytes);
         state.addProperty("updatedAt", manifest.updatedAt);
+        JsonObject files = new JsonObject();
+        for (Map.Entry<String, ArchiveFileState> entry : fileStates.entrySet()) {
+            JsonArray values = new JsonArray();
+            values.add(entry.getValue().size);
+            values.add(entry.getValue().crc);
+            values.add(entry.getValue().mTime);
+            files.add(entry.getKey(), values);
+        }
+        state.add("files", files);
         Path parent = statePath.getParent();
         if (parent != null) Files.createDirectories(parent);
         Files.writeString(statePath, new GsonBuilder().setPrettyPrinting().create().toJson(state), StandardCharsets.UTF_8);
     }
 
+    // Not worth another attempt over a different path, as that would fetch the same bytes.
+    private static class ArchiveChecksumException extends IOException {
+
+        public ArchiveChecksumException(String message) {
+            super(message);
+        }
+    }
+
+    // An archive entry as it was written out: its size and CRC, and the mtime the file was left with.
+    static final class ArchiveFileState {
+        private final long size;
+        private final long crc;
+        private final long mTime;
+
+        private ArchiveFileState(long size, long crc, long mTime) {
+            this.size = size;
+            this.crc = crc;
+            this.mTime = mTime;
+        }
+
+        private boolean isUnchanged(Path file) {
+            try {
+                return Files.isRegularFile(file) && Files.size(file) == size
+                        && Files.getLastModifiedTime(file).toMillis() == mTime;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+    }
+
     private static final class ArchiveManifest {
         private final String name;
         private final String version;
@@ -1,14 +1,24 @@
 package cn.zbx1425.resourcepackupdater.io;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 public class FileProperty {
 
     public final byte[] hash;
     public final long mTime;
     public final long size;
+    // Tiny files may be inlined into the metadata, saving a request each.
+    public final byte[] content;
+    // Patches the server offers from earlier versions: base SHA-1 in hex -> patch size. Null if there are none.
+    public final Map<String, Long> deltas;
 
     public FileProperty(JsonObject obj) {
         byte[] hash1;
@@ -21,11 +31,22 @@ public class FileProperty {
 
         mTime = obj.has("mtime") ? obj.get("mtime").getAsLong() : 0;
         size = obj.has("size") ? obj.get("size").getAsLong() : 0;
+        content = obj.has("content") ? Base64.getDecoder().decode(obj.get("content").getAsString()) : null;
+        if (obj.has("deltas")) {
+            deltas = new HashMap<>();
+            for (Map.Entry<String, JsonElement> entry : obj.getAsJsonObject("deltas").entrySet()) {
+                deltas.put(entry.getKey().toLowerCase(Locale.ROOT), entry.getValue().getAsLong());
+            }
+        } else {
+            deltas = null;
+        }
     }
 
     public FileProperty(byte[] hash, long mTime) {
         this.hash = hash;
         this.mTime = mTime;
         this.size = 0;
+        this.content = null;
+        this.deltas = null;
     }
 }
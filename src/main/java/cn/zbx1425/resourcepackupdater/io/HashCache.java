@@ -1,29 +1,55 @@
 package cn.zbx1425.resourcepackupdater.io;
 
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
 import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.security.MessageDigest;
+import java.util.Locale;
 
-public class HashCache {
+public class HashCache implements Closeable {
 
-    public HashMap<String, FileProperty> entries = new HashMap<>();
-
-    public HashMap<String, FileProperty> entriesToSave = new HashMap<>();
+    public final PathHashStore entriesToSave = new PathHashStore();
 
     private final Path basePath;
+    private HashCacheStore store;
     private boolean isDirty = false;
 
+    private static final int COMPACTION_MIN_GARBAGE = 4096;
+
+    private static final long MAPPED_DIGEST_THRESHOLD = 4 * 1024 * 1024;
+    private static final long MAPPED_DIGEST_REGION = 64 * 1024 * 1024;
+    // Windows keeps a file locked for as long as a mapping of it is reachable,
+    // which would make the following download of that very file fail.
+    private static final boolean MAPPED_DIGEST_SUPPORTED =
+            !System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows");
+
     public HashCache(Path basePath) {
         this.basePath = basePath;
     }
 
-    public void load(Path file) throws IOException {
-        if (!Files.isRegularFile(file)) return;
-        entries.clear();
+    public synchronized void load(Path file, Path indexFile) throws IOException {
+        close();
+        entriesToSave.clear();
+        if (Files.isRegularFile(file) && Files.size(file) >= 4 && HashCacheStore.readVersion(file) == 1) {
+            store = HashCacheStore.create(file, indexFile, loadLegacy(file));
+        } else {
+            try {
+                store = HashCacheStore.open(file, indexFile);
+            } catch (IOException ex) {
+                ResourcePackUpdater.LOGGER.warn("Discarding unreadable hash cache: " + ex);
+                store = HashCacheStore.create(file, indexFile, new PathHashStore());
+            }
+        }
+        isDirty = false;
+    }
+
+    private static PathHashStore loadLegacy(Path file) throws IOException {
+        PathHashStore legacyEntries = new PathHashStore();
         try (DataInputStream stream = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
             final int version = stream.readInt();
             final int entryCount = stream.readInt();
@@ -33,66 +59,123 @@ public class HashCache {
                 final long mTime = stream.readLong();
                 final int hashLength = stream.readInt();
                 final byte[] hash = stream.readNBytes(hashLength);
-                entries.put(key, new FileProperty(hash, mTime));
+                if (hash.length == PathHashStore.HASH_LENGTH) legacyEntries.put(key, hash, mTime);
             }
+        } catch (EOFException ignored) {
+            // Keep whatever was readable from a truncated file.
         }
-        isDirty = false;
+        return legacyEntries;
     }
 
-    public void save(Path file) throws IOException {
-        if (!isDirty) return;
-        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
-            stream.writeInt(1);
-            stream.writeInt(entriesToSave.size());
-            for (var entry : entriesToSave.entrySet()) {
-                stream.writeInt(entry.getKey().length());
-                stream.writeBytes(entry.getKey());
-                stream.writeLong(entry.getValue().mTime);
-                stream.writeInt(entry.getValue().hash.length);
-                stream.write(entry.getValue().hash);
-            }
+    public synchronized void save() throws IOException {
+        if (store == null) return;
+        // Only entries touched in this session are live; everything else in the log is superseded
+        // or belongs to files that are gone, so rewrite the log once that garbage outweighs it.
+        if (!entriesToSave.isEmpty()
+                && store.recordCount() - entriesToSave.size() > Math.max(COMPACTION_MIN_GARBAGE, entriesToSave.size())) {
+            store.compact(entriesToSave);
+            isDirty = true;
         }
+        if (!isDirty) return;
+        store.sync();
         isDirty = false;
     }
 
-    public byte[] getDigest(File file) {
-        String key = basePath.relativize(file.toPath()).toString().replace('\\', '/');
-        FileProperty entry = entries.getOrDefault(key, null);
-        if (entry != null) {
-            if (entry.mTime == file.lastModified()) {
-                entriesToSave.put(key, entry);
-                return entry.hash;
-            }
+    @Override
+    public synchronized void close() throws IOException {
+        if (store == null) return;
+        try {
+            store.close();
+        } finally {
+            store = null;
         }
-        byte[] hash;
+    }
+
+    public byte[] getDigest(File file) {
+        return getDigest(getKey(file), file);
+    }
+
+    public byte[] getDigest(String key, File file) {
+        byte[] hash = getCachedDigest(key, file);
+        if (hash != null) return hash;
         try {
             hash = calculateDigest(file);
         } catch (IOException ex) {
             hash = new byte[20];
         }
-        entry = new FileProperty(hash, file.lastModified());
-        entries.put(key, entry);
-        entriesToSave.put(key, entry);
-        isDirty = true;
-        return hash;
+        return putDigest(key, file, hash);
+    }
+
+    public byte[] getCachedDigest(File file) {
+        return getCachedDigest(getKey(file), file);
     }
 
-    public byte[] getDigestNoCache(File file) {
-        String key = basePath.relativize(file.toPath()).toString().replace('\\', '/');
-        byte[] hash;
+    public synchronized byte[] getCachedDigest(String key, File file) {
+        long mTime = file.lastModified();
+        int id = entriesToSave.indexOf(key);
+        if (id >= 0) {
+            return entriesToSave.getMTime(id) == mTime ? entriesToSave.getHash(id) : null;
+        }
+        if (store == null) return null;
+        FileProperty entry;
         try {
-            hash = calculateDigest(file);
+            entry = store.get(key);
         } catch (IOException ex) {
-            hash = new byte[20];
+            return null;
+        }
+        if (entry == null || entry.mTime != mTime || entry.hash.length != PathHashStore.HASH_LENGTH) return null;
+        entriesToSave.put(key, entry.hash, entry.mTime);
+        return entry.hash;
+    }
+
+    public byte[] putDigest(File file, byte[] hash) {
+        return putDigest(getKey(file), file, hash);
+    }
+
+    public synchronized byte[] putDigest(String key, File file, byte[] hash) {
+        long mTime = file.lastModified();
+        entriesToSave.put(key, hash, mTime);
+        if (store != null) {
+            try {
+                store.put(key, new FileProperty(hash, mTime));
+            } catch (IOException ex) {
+                ResourcePackUpdater.LOGGER.warn("Hash cache is no longer persisted: " + ex);
+                try {
+                    close();
+                } catch (IOException ignored) { }
+            }
         }
-        entries.put(key, new FileProperty(hash, file.lastModified()));
         isDirty = true;
         return hash;
     }
 
+    private String getKey(File file) {
+        return basePath.relativize(file.toPath()).toString().replace('\\', '/');
+    }
+
     public static byte[] calculateDigest(File file) throws IOException {
         try (FileInputStream fis = new FileInputStream(file)) {
-            return DigestUtils.sha1(AssetEncryption.wrapInputStream(fis));
+            if (!ResourcePackUpdater.CONFIG.deepVerifyEncrypted.value) {
+                // Recorded by this client after hashing the content it encrypted, so no need to decrypt it all again.
+                byte[] plainSha1 = AssetEncryption.readPlainSha1(fis);
+                if (plainSha1 != null) return plainSha1;
+            }
+            if (MAPPED_DIGEST_SUPPORTED && file.length() >= MAPPED_DIGEST_THRESHOLD && !AssetEncryption.isEncrypted(fis)) {
+                return calculateMappedDigest(fis.getChannel());
+            }
+            // Closing the wrapper is what hands its cipher back to the pool.
+            try (InputStream input = AssetEncryption.wrapInputStream(fis)) {
+                return DigestUtils.sha1(input);
+            }
+        }
+    }
+
+    private static byte[] calculateMappedDigest(FileChannel channel) throws IOException {
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        long size = channel.size();
+        for (long position = 0; position < size; position += MAPPED_DIGEST_REGION) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_DIGEST_REGION, size - position)));
         }
+        return digest.digest();
     }
 }
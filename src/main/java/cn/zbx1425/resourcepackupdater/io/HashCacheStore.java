@@ -0,0 +1,276 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+ * Version 2 of the hash cache: an append-only record log plus a memory-mapped open-addressing index.
+ *
+ * Log:   int version (2), then records of [int keyLength][UTF-8 key][long mTime][int hashLength][hash].
+ *        A later record for the same key supersedes the earlier ones.
+ * Index: int version, int capacity, int count, int recordCount, long logLength, long reserved,
+ *        then capacity slots of [long keyFingerprint (0 = empty)][long recordOffset].
+ *
+ * The index is only trusted if its logLength matches the log on disk, otherwise it is rebuilt from the log.
+ */
+public class HashCacheStore implements Closeable {
+
+    public static final int VERSION = 2;
+
+    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+    private static final int MIN_CAPACITY = 1024;
+
+    private final Path logFile;
+    private FileChannel logChannel;
+    private final FileChannel indexChannel;
+    private MappedByteBuffer index;
+
+    private int capacity;
+    private int count;
+    private int recordCount;
+    private long logLength;
+
+    private HashCacheStore(Path logFile, Path indexFile) throws IOException {
+        this.logFile = logFile;
+        this.logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public static HashCacheStore open(Path logFile, Path indexFile) throws IOException {
+        HashCacheStore store = new HashCacheStore(logFile, indexFile);
+        try {
+            if (store.logChannel.size() < 4) {
+                store.logChannel.truncate(0);
+                store.logChannel.write(ByteBuffer.allocate(4).putInt(0, VERSION), 0);
+            } else {
+                ByteBuffer versionBuf = ByteBuffer.allocate(4);
+                store.logChannel.read(versionBuf, 0);
+                if (versionBuf.getInt(0) != VERSION) {
+                    throw new IOException("Not a version " + VERSION + " hash cache: " + logFile);
+                }
+            }
+            store.logLength = store.logChannel.size();
+            if (!store.loadIndex()) store.rebuildIndex(MIN_CAPACITY);
+        } catch (IOException ex) {
+            store.close();
+            throw ex;
+        }
+        return store;
+    }
+
+    public static HashCacheStore create(Path logFile, Path indexFile, PathHashStore entries) throws IOException {
+        Files.deleteIfExists(logFile);
+        Files.deleteIfExists(indexFile);
+        HashCacheStore store = open(logFile, indexFile);
+        for (int id = 0; id < entries.size(); id++) {
+            store.put(entries.getPath(id), new FileProperty(entries.getHash(id), entries.getMTime(id)));
+        }
+        return store;
+    }
+
+    public static int readVersion(Path logFile) throws IOException {
+        try (DataInputStream stream = new DataInputStream(Files.newInputStream(logFile))) {
+            return stream.readInt();
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int recordCount() {
+        return recordCount;
+    }
+
+    public FileProperty get(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long fingerprint = fingerprint(keyBytes);
+        int slot = findSlot(keyBytes, fingerprint);
+        if (index.getLong(slotPosition(slot)) == 0) return null;
+        return readRecord(index.getLong(slotPosition(slot) + 8), keyBytes);
+    }
+
+    public void put(String key, FileProperty value) throws IOException {
+        if (count + 1 > capacity * 3 / 5) rebuildIndex(capacity * 2);
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long offset = logLength;
+        ByteBuffer record = ByteBuffer.allocate(4 + keyBytes.length + 8 + 4 + value.hash.length);
+        record.putInt(keyBytes.length).put(keyBytes).putLong(value.mTime).putInt(value.hash.length).put(value.hash).flip();
+        while (record.hasRemaining()) {
+            logChannel.write(record, logLength + record.position());
+        }
+        logLength += record.limit();
+        recordCount++;
+
+        long fingerprint = fingerprint(keyBytes);
+        int slot = findSlot(keyBytes, fingerprint);
+        if (index.getLong(slotPosition(slot)) == 0) count++;
+        index.putLong(slotPosition(slot), fingerprint);
+        index.putLong(slotPosition(slot) + 8, offset);
+        writeIndexHeader();
+    }
+
+    public void compact(PathHashStore liveEntries) throws IOException {
+        Path tempFile = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            stream.writeInt(VERSION);
+            byte[] hash = new byte[PathHashStore.HASH_LENGTH];
+            for (int id = 0; id < liveEntries.size(); id++) {
+                byte[] keyBytes = liveEntries.getPath(id).getBytes(StandardCharsets.UTF_8);
+                stream.writeInt(keyBytes.length);
+                stream.write(keyBytes);
+                stream.writeLong(liveEntries.getMTime(id));
+                stream.writeInt(hash.length);
+                liveEntries.copyHash(id, hash);
+                stream.write(hash);
+            }
+        }
+        logChannel.close();
+        Files.move(tempFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logChannel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        logLength = logChannel.size();
+        rebuildIndex(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, liveEntries.size())) * 4));
+    }
+
+    public void sync() throws IOException {
+        logChannel.force(false);
+        index.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (logChannel.isOpen()) logChannel.close();
+        } finally {
+            indexChannel.close();
+        }
+    }
+
+    private boolean loadIndex() throws IOException {
+        if (indexChannel.size() < INDEX_HEADER_SIZE) return false;
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        indexChannel.read(header, 0);
+        int indexCapacity = header.getInt(4);
+        if (header.getInt(0) != VERSION || header.getLong(16) != logLength
+                || indexCapacity < MIN_CAPACITY || Integer.bitCount(indexCapacity) != 1
+                || indexChannel.size() < INDEX_HEADER_SIZE + (long) indexCapacity * SLOT_SIZE) {
+            return false;
+        }
+        capacity = indexCapacity;
+        count = header.getInt(8);
+        recordCount = header.getInt(12);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        return true;
+    }
+
+    private void rebuildIndex(int newCapacity) throws IOException {
+        // The index file is never shrunk, since Windows refuses to truncate a file that is still mapped.
+        long mappedSize = INDEX_HEADER_SIZE + (long) newCapacity * SLOT_SIZE;
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(mappedSize, indexChannel.size()));
+        capacity = newCapacity;
+        count = 0;
+        recordCount = 0;
+        for (long position = INDEX_HEADER_SIZE; position < mappedSize; position += 8) {
+            index.putLong((int) position, 0);
+        }
+
+        long offset = 4;
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            stream.skipNBytes(offset);
+            while (offset < logLength) {
+                int keyLength = stream.readInt();
+                byte[] keyBytes = stream.readNBytes(keyLength);
+                if (keyBytes.length != keyLength) break;
+                stream.readLong();
+                int hashLength = stream.readInt();
+                stream.skipNBytes(hashLength);
+                if (count + 1 > newCapacity * 3 / 5) {
+                    // More distinct keys in the log than this capacity can take, start over with more room.
+                    stream.close();
+                    rebuildIndex(newCapacity * 2);
+                    return;
+                }
+                long fingerprint = fingerprint(keyBytes);
+                int slot = findSlot(keyBytes, fingerprint);
+                if (index.getLong(slotPosition(slot)) == 0) count++;
+                index.putLong(slotPosition(slot), fingerprint);
+                index.putLong(slotPosition(slot) + 8, offset);
+                recordCount++;
+                offset += 4 + keyLength + 8 + 4 + hashLength;
+            }
+        } catch (EOFException ignored) {
+            // A record torn by a crash; it is dropped below.
+        }
+        if (offset != logLength) {
+            logChannel.truncate(offset);
+            logLength = offset;
+        }
+        writeIndexHeader();
+    }
+
+    private void writeIndexHeader() {
+        index.putInt(0, VERSION);
+        index.putInt(4, capacity);
+        index.putInt(8, count);
+        index.putInt(12, recordCount);
+        index.putLong(16, logLength);
+    }
+
+    private int findSlot(byte[] keyBytes, long fingerprint) throws IOException {
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & (capacity - 1);
+        while (true) {
+            long slotFingerprint = index.getLong(slotPosition(slot));
+            if (slotFingerprint == 0) return slot;
+            if (slotFingerprint == fingerprint && readRecord(index.getLong(slotPosition(slot) + 8), keyBytes) != null) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    private FileProperty readRecord(long offset, byte[] keyBytes) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(4 + keyBytes.length + 8 + 4 + 20);
+        while (record.hasRemaining()) {
+            if (logChannel.read(record, offset + record.position()) < 0) return null;
+        }
+        record.flip();
+        if (record.getInt() != keyBytes.length) return null;
+        byte[] recordKey = new byte[keyBytes.length];
+        record.get(recordKey);
+        if (!Arrays.equals(recordKey, keyBytes)) return null;
+        long mTime = record.getLong();
+        byte[] hash = new byte[record.getInt()];
+        if (hash.length == 20) {
+            record.get(hash);
+        } else {
+            ByteBuffer hashBuf = ByteBuffer.wrap(hash);
+            while (hashBuf.hasRemaining()) {
+                if (logChannel.read(hashBuf, offset + 4 + keyBytes.length + 8 + 4 + hashBuf.position()) < 0) return null;
+            }
+        }
+        return new FileProperty(hash, mTime);
+    }
+
+    private static int slotPosition(int slot) {
+        return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static long fingerprint(byte[] keyBytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : keyBytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -1,27 +1,31 @@
 package cn.zbx1425.resourcepackupdater.io;
 
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
 import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
-import cn.zbx1425.resourcepackupdater.io.network.RemoteMetadata;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class LocalMetadata {
 
     public List<String> dirs = new ArrayList<>();
-    public HashMap<String, byte[]> files = new HashMap<>();
+    public final PathHashStore files = new PathHashStore();
 
     public String baseDir;
     public HashCache hashCache;
+    private volatile MerkleTree merkleTree;
 
-    public final String HASH_CACHE_FILE_NAME = "updater_hash_cache.bin";
+    public static final String HASH_CACHE_FILE_NAME = "updater_hash_cache.bin";
+    public static final String HASH_CACHE_INDEX_FILE_NAME = "updater_hash_cache.idx";
 
     public LocalMetadata(String baseDir) {
         this.baseDir = baseDir;
@@ -29,87 +33,217 @@ public class LocalMetadata {
     }
 
     public void loadHashCache() throws Exception {
-        hashCache.load(Path.of(baseDir, HASH_CACHE_FILE_NAME));
+        hashCache.load(Path.of(baseDir, HASH_CACHE_FILE_NAME), Path.of(baseDir, HASH_CACHE_INDEX_FILE_NAME));
     }
 
     public void scanDir(boolean shouldEncrypt, ProgressReceiver cb) throws Exception {
         loadHashCache();
         dirs.clear();
         files.clear();
-
-        int filesScanned = 0;
+        merkleTree = null;
 
         Path basePath = Paths.get(baseDir);
         if (!Files.isDirectory(basePath)) {
             Files.createDirectories(basePath);
         }
+        List<Path> fileEntries = new ArrayList<>();
         try (var walkStream = Files.walk(basePath)) {
             for (var entry : walkStream.toList()) {
                 var relPath = basePath.relativize(entry).toString().replace('\\', '/');
-                if (relPath.equals(HASH_CACHE_FILE_NAME)) continue;
+                if (isIgnored(relPath, entry)) continue;
                 if (Files.isDirectory(entry)) {
                     dirs.add(relPath);
                 } else {
-                    if (entry.getFileName().toString().toLowerCase(Locale.ROOT).equals("desktop.ini")) continue;
                     // shouldEncrypt check cancelled for now
                     // if (shouldEncrypt) AssetEncryption.encryptIfRaw(entry.toFile());
-                    filesScanned++;
-                    if (filesScanned % 200 == 0) {
-                        cb.setProgress((float)filesScanned / hashCache.entries.size(), 0);
-                        cb.setInfo(filesScanned + " / " + hashCache.entries.size(), "");
+                    fileEntries.add(entry);
+                }
+            }
+        }
+
+        // Cache hits only cost a stat, so they are resolved right here; misses are hashed on a pool
+        // and collected afterwards on this thread, since the progress receiver must stay on it.
+        ForkJoinPool hashPool = ResourcePackUpdater.CONFIG.parallelScan.value
+                ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+        try {
+            HashMap<String, ForkJoinTask<byte[]>> pendingDigests = new HashMap<>();
+            int filesScanned = 0;
+            for (Path entry : fileEntries) {
+                var relPath = basePath.relativize(entry).toString().replace('\\', '/');
+                File file = entry.toFile();
+                filesScanned++;
+                if (filesScanned % 200 == 0) {
+                    cb.setProgress((float)filesScanned / fileEntries.size(), 0);
+                    cb.setInfo(filesScanned + " / " + fileEntries.size(), "");
+                }
+                byte[] cachedDigest = hashCache.getCachedDigest(relPath, file);
+                if (cachedDigest != null) {
+                    files.put(relPath, cachedDigest);
+                } else if (hashPool == null) {
+                    files.put(relPath, hashCache.getDigest(relPath, file));
+                } else {
+                    pendingDigests.put(relPath, hashPool.submit(() -> {
+                        try {
+                            return HashCache.calculateDigest(file);
+                        } catch (IOException ex) {
+                            return new byte[20];
+                        }
+                    }));
+                }
+            }
+
+            int filesHashed = 0;
+            for (var pending : pendingDigests.entrySet()) {
+                while (true) {
+                    try {
+                        byte[] digest = pending.getValue().get(100, TimeUnit.MILLISECONDS);
+                        files.put(pending.getKey(), hashCache.putDigest(pending.getKey(), basePath.resolve(pending.getKey()).toFile(), digest));
+                        break;
+                    } catch (TimeoutException ignored) {
+                        cb.setInfo(filesHashed + " / " + pendingDigests.size(), "");
                     }
-                    files.put(relPath, hashCache.getDigest(entry.toFile()));
+                }
+                filesHashed++;
+                if (filesHashed % 50 == 0) {
+                    cb.setProgress((float)filesHashed / pendingDigests.size(), 0);
+                    cb.setInfo(filesHashed + " / " + pendingDigests.size(), "");
                 }
             }
+        } finally {
+            if (hashPool != null) hashPool.shutdownNow();
         }
         saveHashCache();
     }
 
-    public void saveHashCache() throws IOException {
-        hashCache.save(Path.of(baseDir, HASH_CACHE_FILE_NAME));
-    }
+    public void rescanPaths(Collection<String> relPaths, ProgressReceiver cb) throws Exception {
+        Path basePath = Paths.get(baseDir);
+        LinkedHashSet<String> dirSet = new LinkedHashSet<>(dirs);
+        int pathsScanned = 0;
+        for (String relPath : relPaths) {
+            if (dirSet.contains(relPath)) {
+                String prefix = relPath + "/";
+                dirSet.removeIf(dir -> dir.equals(relPath) || dir.startsWith(prefix));
+                files.removeIf(file -> file.startsWith(prefix));
+                if (merkleTree != null) merkleTree.removeDir(relPath);
+            }
+            if (files.remove(relPath) && merkleTree != null) merkleTree.removeFile(relPath);
+
+            Path path = basePath.resolve(relPath);
+            if (Files.isDirectory(path)) {
+                try (var walkStream = Files.walk(path)) {
+                    for (var entry : walkStream.toList()) {
+                        var entryRelPath = basePath.relativize(entry).toString().replace('\\', '/');
+                        if (isIgnored(entryRelPath, entry)) continue;
+                        if (Files.isDirectory(entry)) {
+                            dirSet.add(entryRelPath);
+                            if (merkleTree != null) merkleTree.putDir(entryRelPath);
+                        } else {
+                            putFile(entryRelPath, hashCache.getDigest(entryRelPath, entry.toFile()));
+                        }
+                    }
+                }
+            } else if (Files.isRegularFile(path) && !isIgnored(relPath, path)) {
+                putFile(relPath, hashCache.getDigest(relPath, path.toFile()));
+            }
 
-    public byte[] getDirChecksum() throws Exception {
-        ByteBuf buf = Unpooled.buffer(1024 * 512);
-        dirs.stream().sorted().forEach(dir -> buf.writeCharSequence(dir, StandardCharsets.UTF_8));
-        files.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(entry -> {
-            buf.writeCharSequence(entry.getKey(), StandardCharsets.UTF_8);
-            buf.writeBytes(entry.getValue());
-        });
-        MessageDigest digest = MessageDigest.getInstance("SHA-1");
-        buf.capacity(buf.writerIndex());
-        InputStream fis = new ByteArrayInputStream(buf.array());
-        int n = 0;
-        byte[] buffer = new byte[8192];
-        while (n != -1) {
-            n = fis.read(buffer);
-            if (n > 0) {
-                digest.update(buffer, 0, n);
+            pathsScanned++;
+            if (pathsScanned % 200 == 0) {
+                cb.setProgress((float)pathsScanned / relPaths.size(), 0);
+                cb.setInfo(pathsScanned + " / " + relPaths.size(), "");
             }
         }
-        return digest.digest();
+        dirs.clear();
+        dirs.addAll(dirSet);
+        saveHashCache();
+    }
+
+    private void putFile(String relPath, byte[] hash) {
+        files.put(relPath, hash);
+        if (merkleTree != null) merkleTree.putFile(relPath, hash);
+    }
+
+    private boolean isIgnored(String relPath, Path path) {
+        if (relPath.equals(HASH_CACHE_FILE_NAME) || relPath.equals(HASH_CACHE_INDEX_FILE_NAME)) return true;
+        return !Files.isDirectory(path) && path.getFileName().toString().toLowerCase(Locale.ROOT).equals("desktop.ini");
+    }
+
+    public void saveHashCache() throws IOException {
+        hashCache.save();
     }
 
-    public List<String> getDirsToCreate(RemoteMetadata other) {
-        return other.dirs.stream().filter(dir -> !dirs.contains(dir)).toList();
+    public void closeHashCache() throws IOException {
+        hashCache.close();
     }
 
-    public List<String> getDirsToDelete(RemoteMetadata other) {
-        return dirs.stream().filter(dir -> !other.dirs.contains(dir)).toList();
+    public synchronized MerkleTree getMerkleTree() {
+        if (merkleTree == null) merkleTree = MerkleTree.build(dirs, files);
+        return merkleTree;
     }
 
-    public List<String> getFilesToCreate(RemoteMetadata other) {
-        return other.files.keySet().stream().filter(file -> !files.containsKey(file)).toList();
+    // Keeps the subtree hashes current while downloads land, without waiting for the next scan.
+    public void onFileWritten(Path file, byte[] hash) {
+        MerkleTree tree = merkleTree;
+        if (tree != null) tree.putFile(Paths.get(baseDir).relativize(file).toString().replace('\\', '/'), hash);
     }
 
-    public List<String> getFilesToUpdate(RemoteMetadata other) {
-        return files.entrySet().stream().filter(
-                entry -> other.files.containsKey(entry.getKey())
-                        && !Arrays.equals(other.files.get(entry.getKey()).hash, entry.getValue())
-        ).map(Map.Entry::getKey).toList();
+    public void onPathDeleted(String relPath) {
+        MerkleTree tree = merkleTree;
+        if (tree == null) return;
+        tree.removeFile(relPath);
+        tree.removeDir(relPath);
     }
 
-    public List<String> getFilesToDelete(RemoteMetadata other) {
-        return files.keySet().stream().filter(file -> !other.files.containsKey(file)).toList();
+    public byte[] getDirChecksum() {
+        // Entries go straight into the digest: sorted dirs, then sorted files each followed by its hash.
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        byte[] scratch = new byte[256];
+        String[] sortedDirs = dirs.toArray(new String[0]);
+        Arrays.sort(sortedDirs);
+        for (String dir : sortedDirs) {
+            scratch = updateUtf8(digest, dir, scratch);
+        }
+        for (String file : files.sortedPaths()) {
+            scratch = updateUtf8(digest, file, scratch);
+            files.updateDigest(files.indexOf(file), digest);
+        }
+        return digest.digest();
+    }
+
+    private static byte[] updateUtf8(MessageDigest digest, String str, byte[] scratch) {
+        if (scratch.length < str.length() * 3) scratch = new byte[str.length() * 3];
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                scratch[length++] = (byte) c;
+            } else if (c < 0x800) {
+                scratch[length++] = (byte) (0xc0 | (c >> 6));
+                scratch[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates come out exactly as netty's ByteBuf encoder, which the checksum used to go
+                // through, wrote them: that one also swallows the char after a lone high surrogate, keeping its low byte.
+                if (!Character.isHighSurrogate(c) || i + 1 == str.length()) {
+                    scratch[length++] = '?';
+                    continue;
+                }
+                char c2 = str.charAt(++i);
+                if (!Character.isLowSurrogate(c2)) {
+                    scratch[length++] = '?';
+                    scratch[length++] = (byte) (Character.isHighSurrogate(c2) ? '?' : c2);
+                    continue;
+                }
+                int codePoint = Character.toCodePoint(c, c2);
+                scratch[length++] = (byte) (0xf0 | (codePoint >> 18));
+                scratch[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                scratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                scratch[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                scratch[length++] = (byte) (0xe0 | (c >> 12));
+                scratch[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                scratch[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        digest.update(scratch, 0, length);
+        return scratch;
     }
 }
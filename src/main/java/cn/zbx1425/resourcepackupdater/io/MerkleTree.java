@@ -0,0 +1,133 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// The hash of a directory is the SHA-1 over its subdirectories and then its files, each in name order:
+// 'd' name '\0' subtreeHash for a subdirectory and 'f' name '\0' sha1 for a file, names in UTF-8.
+public class MerkleTree {
+
+    private final Node root = new Node();
+
+    private static class Node {
+        final TreeMap<String, Node> dirs = new TreeMap<>();
+        final TreeMap<String, byte[]> files = new TreeMap<>();
+        byte[] hash;
+    }
+
+    public static MerkleTree build(List<String> dirs, PathHashStore files) {
+        MerkleTree tree = new MerkleTree();
+        for (String dir : dirs) {
+            tree.getNode(dir, true);
+        }
+        for (int id = 0; id < files.size(); id++) {
+            tree.putFile(files.getPath(id), files.getHash(id));
+        }
+        return tree;
+    }
+
+    public synchronized void putFile(String relPath, byte[] hash) {
+        int split = relPath.lastIndexOf('/');
+        Node parent = getNode(split < 0 ? "" : relPath.substring(0, split), true);
+        byte[] previous = parent.files.put(relPath.substring(split + 1), hash);
+        if (previous == null || !MessageDigest.isEqual(previous, hash)) invalidate(relPath);
+    }
+
+    public synchronized void removeFile(String relPath) {
+        int split = relPath.lastIndexOf('/');
+        Node parent = getNode(split < 0 ? "" : relPath.substring(0, split), false);
+        if (parent != null && parent.files.remove(relPath.substring(split + 1)) != null) invalidate(relPath);
+    }
+
+    public synchronized void putDir(String relPath) {
+        getNode(relPath, true);
+    }
+
+    public synchronized void removeDir(String relPath) {
+        if (relPath.isEmpty()) return;
+        int split = relPath.lastIndexOf('/');
+        Node parent = getNode(split < 0 ? "" : relPath.substring(0, split), false);
+        if (parent != null && parent.dirs.remove(relPath.substring(split + 1)) != null) invalidate(relPath);
+    }
+
+    public synchronized byte[] getHash(String dirPath) {
+        Node node = getNode(dirPath, false);
+        return node == null ? null : hashOf(node);
+    }
+
+    public synchronized void collect(String dirPath, List<String> dirsOut, Map<String, FileProperty> filesOut) {
+        Node node = getNode(dirPath, false);
+        if (node != null) collect(node, dirPath.isEmpty() ? "" : dirPath + "/", dirsOut, filesOut);
+    }
+
+    private static void collect(Node node, String prefix, List<String> dirsOut, Map<String, FileProperty> filesOut) {
+        for (var entry : node.files.entrySet()) {
+            filesOut.put(prefix + entry.getKey(), new FileProperty(entry.getValue(), 0));
+        }
+        for (var entry : node.dirs.entrySet()) {
+            dirsOut.add(prefix + entry.getKey());
+            collect(entry.getValue(), prefix + entry.getKey() + "/", dirsOut, filesOut);
+        }
+    }
+
+    public static byte[] computeDirHash(SortedMap<String, byte[]> dirHashes, SortedMap<String, byte[]> fileHashes) {
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        for (var entry : dirHashes.entrySet()) {
+            updateEntry(digest, 'd', entry.getKey(), entry.getValue());
+        }
+        for (var entry : fileHashes.entrySet()) {
+            updateEntry(digest, 'f', entry.getKey(), entry.getValue());
+        }
+        return digest.digest();
+    }
+
+    private static void updateEntry(MessageDigest digest, char type, String name, byte[] hash) {
+        digest.update((byte) type);
+        digest.update(name.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(hash);
+    }
+
+    private byte[] hashOf(Node node) {
+        if (node.hash == null) {
+            TreeMap<String, byte[]> dirHashes = new TreeMap<>();
+            for (var entry : node.dirs.entrySet()) {
+                dirHashes.put(entry.getKey(), hashOf(entry.getValue()));
+            }
+            node.hash = computeDirHash(dirHashes, node.files);
+        }
+        return node.hash;
+    }
+
+    private Node getNode(String dirPath, boolean create) {
+        Node node = root;
+        if (dirPath.isEmpty()) return node;
+        for (String name : dirPath.split("/")) {
+            Node child = node.dirs.get(name);
+            if (child == null) {
+                if (!create) return null;
+                child = new Node();
+                node.dirs.put(name, child);
+                node.hash = null;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private void invalidate(String relPath) {
+        Node node = root;
+        node.hash = null;
+        String[] names = relPath.split("/");
+        for (int i = 0; i < names.length - 1 && node != null; i++) {
+            node = node.dirs.get(names[i]);
+            if (node != null) node.hash = null;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class PackWatcher implements Closeable {
+
+    private static PackWatcher active;
+
+    private final Path basePath;
+    private final LocalMetadata metadata;
+    private final WatchService watchService;
+    private final HashMap<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Set<String> dirtyPaths = ConcurrentHashMap.newKeySet();
+    private volatile boolean overflowed = false;
+    private final Thread watchThread;
+
+    private PackWatcher(LocalMetadata metadata) throws IOException {
+        this.basePath = Paths.get(metadata.baseDir);
+        this.metadata = metadata;
+        this.watchService = basePath.getFileSystem().newWatchService();
+        registerTree(basePath);
+        this.watchThread = new Thread(this::runWatchLoop, "RPU Pack Watcher");
+        this.watchThread.setDaemon(true);
+        this.watchThread.start();
+    }
+
+    public static synchronized LocalMetadata acquireMetadata(String baseDir) {
+        if (active != null && (!ResourcePackUpdater.CONFIG.watchPackDir.value
+                || !active.basePath.equals(Paths.get(baseDir)) || active.overflowed)) {
+            stopActive();
+        }
+        return active != null ? active.metadata : new LocalMetadata(baseDir);
+    }
+
+    public static synchronized void watch(LocalMetadata metadata) {
+        if (!ResourcePackUpdater.CONFIG.watchPackDir.value || isWatching(metadata)) return;
+        stopActive();
+        try {
+            // Started before the full scan, so anything changed while scanning is picked up next time.
+            active = new PackWatcher(metadata);
+        } catch (IOException ex) {
+            ResourcePackUpdater.LOGGER.warn("Cannot watch resource pack directory: " + ex);
+        }
+    }
+
+    public static synchronized boolean isWatching(LocalMetadata metadata) {
+        return active != null && active.metadata == metadata;
+    }
+
+    // Returns the number of paths rescanned, or -1 if a full scan is needed instead.
+    public static synchronized int refresh(LocalMetadata metadata, ProgressReceiver cb) throws Exception {
+        if (!isWatching(metadata)) return -1;
+        if (active.overflowed) {
+            ResourcePackUpdater.LOGGER.info("Resource pack watcher overflowed, falling back to a full scan.");
+            stopActive();
+            return -1;
+        }
+        List<String> changedPaths = active.drainDirtyPaths();
+        metadata.rescanPaths(changedPaths, cb);
+        return changedPaths.size();
+    }
+
+    private static void stopActive() {
+        if (active == null) return;
+        try {
+            active.close();
+        } catch (IOException ignored) { }
+        active = null;
+    }
+
+    private List<String> drainDirtyPaths() {
+        List<String> changedPaths = dirtyPaths.stream().sorted().toList();
+        dirtyPaths.removeAll(changedPaths);
+        return changedPaths;
+    }
+
+    private void runWatchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir;
+                synchronized (watchedDirs) {
+                    dir = watchedDirs.get(key);
+                }
+                if (dir != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflowed = true;
+                            continue;
+                        }
+                        Path child = dir.resolve((Path) event.context());
+                        // Changes inside a subdirectory are reported by its own watch key.
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) continue;
+                        dirtyPaths.add(basePath.relativize(child).toString().replace('\\', '/'));
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            try {
+                                registerTree(child);
+                            } catch (IOException ex) {
+                                overflowed = true;
+                            }
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    synchronized (watchedDirs) {
+                        watchedDirs.remove(key);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        }
+    }
+
+    private void registerTree(Path root) throws IOException {
+        try (var walkStream = Files.walk(root)) {
+            for (Path dir : walkStream.filter(Files::isDirectory).toList()) {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                synchronized (watchedDirs) {
+                    watchedDirs.put(key, dir);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchThread.interrupt();
+        watchService.close();
+        metadata.closeHashCache();
+    }
+}
@@ -0,0 +1,168 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+// Relative paths with a SHA-1 and an mtime each, kept in flat arrays instead of one map entry and
+// hash array per file. Entries are numbered 0 until size(); removing one moves the last into its place.
+public class PathHashStore {
+
+    public static final int HASH_LENGTH = 20;
+
+    private String[] paths = new String[16];
+    private byte[] hashes = new byte[16 * HASH_LENGTH];
+    private long[] mTimes = new long[16];
+    // Open addressing with linear probing, holding id + 1 with 0 for an empty slot.
+    private int[] table = new int[32];
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(paths, 0, size, null);
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    public int indexOf(String path) {
+        int slot = findSlot(path);
+        return table[slot] - 1;
+    }
+
+    public boolean contains(String path) {
+        return indexOf(path) >= 0;
+    }
+
+    public int put(String path, byte[] hash) {
+        return put(path, hash, 0);
+    }
+
+    public int put(String path, byte[] hash, long mTime) {
+        if (hash.length != HASH_LENGTH) throw new IllegalArgumentException("Hash must be " + HASH_LENGTH + " bytes");
+        int slot = findSlot(path);
+        int id = table[slot] - 1;
+        if (id < 0) {
+            if (size == paths.length) {
+                grow();
+                slot = findSlot(path);
+            }
+            id = size++;
+            paths[id] = path;
+            table[slot] = id + 1;
+        }
+        System.arraycopy(hash, 0, hashes, id * HASH_LENGTH, HASH_LENGTH);
+        mTimes[id] = mTime;
+        return id;
+    }
+
+    public boolean remove(String path) {
+        int slot = findSlot(path);
+        int id = table[slot] - 1;
+        if (id < 0) return false;
+        deleteSlot(slot);
+        int last = size - 1;
+        if (id != last) {
+            table[findSlot(paths[last])] = id + 1;
+            paths[id] = paths[last];
+            System.arraycopy(hashes, last * HASH_LENGTH, hashes, id * HASH_LENGTH, HASH_LENGTH);
+            mTimes[id] = mTimes[last];
+        }
+        paths[last] = null;
+        size--;
+        return true;
+    }
+
+    public int removeIf(Predicate<String> filter) {
+        int removed = 0;
+        for (int id = size - 1; id >= 0; id--) {
+            if (id < size && filter.test(paths[id])) {
+                remove(paths[id]);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public String getPath(int id) {
+        return paths[id];
+    }
+
+    public byte[] getHash(int id) {
+        return Arrays.copyOfRange(hashes, id * HASH_LENGTH, (id + 1) * HASH_LENGTH);
+    }
+
+    public void copyHash(int id, byte[] target) {
+        System.arraycopy(hashes, id * HASH_LENGTH, target, 0, HASH_LENGTH);
+    }
+
+    public byte[] getHash(String path) {
+        int id = indexOf(path);
+        return id < 0 ? null : getHash(id);
+    }
+
+    public boolean hashEquals(int id, byte[] hash) {
+        return hash != null && Arrays.equals(hashes, id * HASH_LENGTH, (id + 1) * HASH_LENGTH, hash, 0, hash.length);
+    }
+
+    public void updateDigest(int id, MessageDigest digest) {
+        digest.update(hashes, id * HASH_LENGTH, HASH_LENGTH);
+    }
+
+    public long getMTime(int id) {
+        return mTimes[id];
+    }
+
+    public String[] sortedPaths() {
+        String[] sorted = Arrays.copyOf(paths, size);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private int findSlot(String path) {
+        int mask = table.length - 1;
+        int slot = spread(path.hashCode()) & mask;
+        while (table[slot] != 0 && !paths[table[slot] - 1].equals(path)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Backward-shift deletion, so lookups never need tombstones.
+    private void deleteSlot(int slot) {
+        int mask = table.length - 1;
+        table[slot] = 0;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (table[next] == 0) return;
+            int home = spread(paths[table[next] - 1].hashCode()) & mask;
+            boolean stays = slot <= next ? (slot < home && home <= next) : (slot < home || home <= next);
+            if (stays) continue;
+            table[slot] = table[next];
+            table[next] = 0;
+            slot = next;
+        }
+    }
+
+    private void grow() {
+        int capacity = paths.length * 2;
+        paths = Arrays.copyOf(paths, capacity);
+        hashes = Arrays.copyOf(hashes, capacity * HASH_LENGTH);
+        mTimes = Arrays.copyOf(mTimes, capacity);
+        table = new int[capacity * 2];
+        for (int id = 0; id < size; id++) {
+            table[findSlot(paths[id])] = id + 1;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
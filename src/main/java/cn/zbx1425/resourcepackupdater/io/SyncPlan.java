@@ -0,0 +1,137 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import cn.zbx1425.resourcepackupdater.io.network.RemoteMetadata;
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.*;
+
+public class SyncPlan {
+
+    public final List<String> dirsToCreate = new ArrayList<>();
+    public final List<String> dirsToDelete = new ArrayList<>();
+    public final List<String> filesToCreate = new ArrayList<>();
+    public final List<String> filesToUpdate = new ArrayList<>();
+    public final List<String> filesToDelete = new ArrayList<>();
+    // Local file -> new paths that get a copy of it, as their content is already in the pack.
+    public final Map<String, List<String>> filesToReuse = new LinkedHashMap<>();
+    // Downloaded file -> other new paths with the same content, copied from it once it is written.
+    public final Map<String, List<String>> filesToCopy = new LinkedHashMap<>();
+
+    public long bytesToCreate;
+    public long bytesToUpdate;
+    public long bytesToReuse;
+
+    // Both sides are sorted once and merged in a single pass, so every list comes out in path order.
+    public SyncPlan(LocalMetadata local, RemoteMetadata remote) {
+        String[] localDirs = local.dirs.toArray(new String[0]);
+        String[] remoteDirs = remote.dirs.toArray(new String[0]);
+        Arrays.sort(localDirs);
+        Arrays.sort(remoteDirs);
+        int i = 0, j = 0;
+        while (i < localDirs.length || j < remoteDirs.length) {
+            int cmp = i >= localDirs.length ? 1 : j >= remoteDirs.length ? -1 : localDirs[i].compareTo(remoteDirs[j]);
+            if (cmp < 0) {
+                dirsToDelete.add(localDirs[i++]);
+            } else if (cmp > 0) {
+                dirsToCreate.add(remoteDirs[j++]);
+            } else {
+                i++;
+                j++;
+            }
+        }
+
+        String[] localFiles = local.files.sortedPaths();
+        String[] remoteFiles = remote.files.keySet().toArray(new String[0]);
+        Arrays.sort(remoteFiles);
+        i = 0;
+        j = 0;
+        while (i < localFiles.length || j < remoteFiles.length) {
+            int cmp = i >= localFiles.length ? 1 : j >= remoteFiles.length ? -1 : localFiles[i].compareTo(remoteFiles[j]);
+            if (cmp < 0) {
+                filesToDelete.add(localFiles[i++]);
+            } else if (cmp > 0) {
+                filesToCreate.add(remoteFiles[j]);
+                bytesToCreate += remote.files.get(remoteFiles[j++]).size;
+            } else {
+                FileProperty remoteFile = remote.files.get(remoteFiles[j++]);
+                if (!local.files.hashEquals(local.files.indexOf(localFiles[i++]), remoteFile.hash)) {
+                    filesToUpdate.add(remoteFiles[j - 1]);
+                    bytesToUpdate += remoteFile.size;
+                }
+            }
+        }
+
+        planReuse(local, remote);
+    }
+
+    private void planReuse(LocalMetadata local, RemoteMetadata remote) {
+        Map<String, List<String>> targetsByHash = new LinkedHashMap<>();
+        for (String file : getFilesToWrite()) {
+            targetsByHash.computeIfAbsent(Hex.encodeHexString(remote.files.get(file).hash), k -> new ArrayList<>()).add(file);
+        }
+        // Files about to be overwritten cannot serve as a source. Ones about to be deleted are preferred,
+        // as the last copy of them can be a move instead.
+        HashSet<String> updatedFiles = new HashSet<>(filesToUpdate);
+        HashSet<String> deletedFiles = new HashSet<>(filesToDelete);
+        Map<String, String> sourceByHash = new HashMap<>();
+        for (int id = 0; id < local.files.size(); id++) {
+            String path = local.files.getPath(id);
+            if (updatedFiles.contains(path)) continue;
+            String hash = Hex.encodeHexString(local.files.getHash(id));
+            if (!targetsByHash.containsKey(hash)) continue;
+            String current = sourceByHash.get(hash);
+            if (current == null || (!deletedFiles.contains(current) && deletedFiles.contains(path))) sourceByHash.put(hash, path);
+        }
+        for (Map.Entry<String, List<String>> entry : targetsByHash.entrySet()) {
+            List<String> targets = entry.getValue();
+            String source = sourceByHash.get(entry.getKey());
+            long size = remote.files.get(targets.get(0)).size;
+            if (source != null) {
+                filesToReuse.put(source, targets);
+                bytesToReuse += size * targets.size();
+            } else if (targets.size() > 1) {
+                filesToCopy.put(targets.get(0), targets.subList(1, targets.size()));
+                bytesToReuse += size * (targets.size() - 1);
+            }
+        }
+    }
+
+    // Every new or changed file, whichever way its content arrives.
+    public List<String> getFilesToWrite() {
+        List<String> files = new ArrayList<>(filesToCreate.size() + filesToUpdate.size());
+        files.addAll(filesToCreate);
+        files.addAll(filesToUpdate);
+        return files;
+    }
+
+    // The files whose content has to be fetched from the server.
+    public List<String> getFilesToDownload() {
+        HashSet<String> localCopies = new HashSet<>();
+        filesToReuse.values().forEach(localCopies::addAll);
+        filesToCopy.values().forEach(localCopies::addAll);
+        return getFilesToWrite().stream().filter(file -> !localCopies.contains(file)).toList();
+    }
+
+    // Deleted directories that are not inside another deleted directory.
+    public List<String> getTopDirsToDelete() {
+        HashSet<String> deletedDirs = new HashSet<>(dirsToDelete);
+        return dirsToDelete.stream().filter(dir -> !hasAncestorIn(dir, deletedDirs)).toList();
+    }
+
+    // Deleted files that are not removed along with a deleted directory anyway.
+    public List<String> getLooseFilesToDelete() {
+        HashSet<String> deletedDirs = new HashSet<>(dirsToDelete);
+        return filesToDelete.stream().filter(file -> !hasAncestorIn(file, deletedDirs)).toList();
+    }
+
+    public long getBytesToDownload() {
+        return bytesToCreate + bytesToUpdate - bytesToReuse;
+    }
+
+    private static boolean hasAncestorIn(String path, Set<String> dirs) {
+        for (int split = path.lastIndexOf('/'); split > 0; split = path.lastIndexOf('/', split - 1)) {
+            if (dirs.contains(path.substring(0, split))) return true;
+        }
+        return false;
+    }
+}
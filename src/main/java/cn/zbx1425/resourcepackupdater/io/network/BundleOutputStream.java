@@ -0,0 +1,118 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Splits the response of the bundle endpoint into the files it carries. The body is a sequence of
+// [int pathLength][path, UTF-8][long size][content] entries, ended by an entry with a zero pathLength.
+// Each entry is written to the target registered for its path, which is removed from the map once that
+// target has been closed, so a retried bundle only writes what is still missing.
+// Paths the server did not send are handed to onMissing once the terminator arrives.
+public class BundleOutputStream extends OutputStream {
+
+    private static final int MAX_PATH_LENGTH = 64 * 1024;
+
+    private final Map<String, Supplier<OutputStream>> remaining;
+    private final Consumer<List<String>> onMissing;
+
+    private byte[] header = new byte[256];
+    private int headerLength = 0;
+    private String entryPath;
+    private OutputStream entryOutput;
+    private long entryRemaining = 0;
+    private boolean terminated = false;
+    private boolean closed = false;
+
+    public BundleOutputStream(Map<String, Supplier<OutputStream>> remaining, Consumer<List<String>> onMissing) {
+        this.remaining = remaining;
+        this.onMissing = onMissing;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (terminated) throw new IOException("Data after end of bundle");
+            if (entryPath != null) {
+                int n = (int)Math.min(len, entryRemaining);
+                if (entryOutput != null) entryOutput.write(b, off, n);
+                off += n;
+                len -= n;
+                entryRemaining -= n;
+                if (entryRemaining == 0) finishEntry();
+                continue;
+            }
+            int headerNeeded = getHeaderNeeded();
+            int n = Math.min(len, headerNeeded - headerLength);
+            if (headerNeeded > header.length) header = Arrays.copyOf(header, headerNeeded);
+            System.arraycopy(b, off, header, headerLength, n);
+            headerLength += n;
+            off += n;
+            len -= n;
+            if (headerLength == getHeaderNeeded()) beginEntry();
+        }
+    }
+
+    // The header is read in two steps, as its length is only known once the path length is in.
+    private int getHeaderNeeded() throws IOException {
+        if (headerLength < 4) return 4;
+        int pathLength = ByteBuffer.wrap(header, 0, 4).getInt();
+        if (pathLength < 0 || pathLength > MAX_PATH_LENGTH) throw new IOException("Malformed bundle entry");
+        return pathLength == 0 ? 4 : 4 + pathLength + 8;
+    }
+
+    private void beginEntry() throws IOException {
+        int pathLength = ByteBuffer.wrap(header, 0, 4).getInt();
+        headerLength = 0;
+        if (pathLength == 0) {
+            terminated = true;
+            return;
+        }
+        entryPath = new String(header, 4, pathLength, StandardCharsets.UTF_8);
+        entryRemaining = ByteBuffer.wrap(header, 4 + pathLength, 8).getLong();
+        if (entryRemaining < 0) throw new IOException("Malformed bundle entry: " + entryPath);
+        Supplier<OutputStream> target = remaining.get(entryPath);
+        entryOutput = target == null ? null : target.get();
+        if (entryRemaining == 0) finishEntry();
+    }
+
+    private void finishEntry() throws IOException {
+        if (entryOutput != null) {
+            OutputStream output = entryOutput;
+            entryOutput = null;
+            output.close();
+            remaining.remove(entryPath);
+        }
+        entryPath = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (!terminated) {
+            if (entryOutput != null) {
+                try {
+                    // Closing an unfinished PackOutputStream discards its temporary file.
+                    entryOutput.close();
+                } catch (IOException ignored) {
+                }
+            }
+            throw new EOFException("Unexpected end of bundle");
+        }
+        if (!remaining.isEmpty()) onMissing.accept(new ArrayList<>(remaining.keySet()));
+    }
+}
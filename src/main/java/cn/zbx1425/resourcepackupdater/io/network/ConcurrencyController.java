@@ -0,0 +1,79 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+// Limits how many downloads are in flight, adjusting the limit AIMD-style once per sampling window:
+// one more while throughput keeps up and latency stays near the best seen, a quarter less when requests
+// fail or latency climbs without throughput to show for it.
+public class ConcurrencyController {
+
+    private static final long WINDOW_MILLIS = 2000;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double DECREASE_FACTOR = 0.75;
+
+    public final int minLimit;
+    public final int maxLimit;
+
+    private int limit;
+    private int inFlight = 0;
+
+    private long windowStart = -1;
+    private long windowBytes = 0;
+    private double lastThroughput = 0;
+    private long latencySum = 0;
+    private int latencyCount = 0;
+    private long minLatency = Long.MAX_VALUE;
+    private int failures = 0;
+
+    public ConcurrencyController(int minLimit, int maxLimit, int initialLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+    }
+
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= limit) return false;
+        inFlight++;
+        return true;
+    }
+
+    public synchronized void release() {
+        inFlight--;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized void onRequestLatency(long latencyMillis) {
+        latencySum += latencyMillis;
+        latencyCount++;
+        minLatency = Math.min(minLatency, latencyMillis);
+    }
+
+    public synchronized void onFailure() {
+        failures++;
+    }
+
+    // Called with the bytes received since the last call; hasWaitingWork tells whether a higher limit would be used.
+    public synchronized void onProgress(long newBytes, boolean hasWaitingWork) {
+        long now = System.currentTimeMillis();
+        if (windowStart == -1) windowStart = now;
+        windowBytes += newBytes;
+        if (now - windowStart < WINDOW_MILLIS) return;
+
+        double throughput = windowBytes * 1000.0 / (now - windowStart);
+        double avgLatency = latencyCount == 0 ? 0 : (double) latencySum / latencyCount;
+        boolean congested = latencyCount > 0 && minLatency > 0 && avgLatency > minLatency * LATENCY_TOLERANCE;
+        if (failures > 0 || (congested && throughput <= lastThroughput)) {
+            limit = Math.max(minLimit, (int) (limit * DECREASE_FACTOR));
+        } else if (hasWaitingWork && throughput >= lastThroughput * 0.9) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+
+        lastThroughput = throughput;
+        windowStart = now;
+        windowBytes = 0;
+        latencySum = 0;
+        latencyCount = 0;
+        failures = 0;
+    }
+}
@@ -0,0 +1,98 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+import org.brotli.dec.BrotliInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+// The Content-Encodings downloads can be decoded from. zstd and brotli come from pure-Java libraries bundled
+// with the mod; both only decode pull-style, so the async engine runs them through a PullDecodingOutputStream.
+// Another codec only needs an entry in DECODERS to be offered to servers.
+public class ContentDecoders {
+
+    public interface Decoder {
+
+        InputStream wrap(InputStream input) throws IOException;
+
+        // For the async engine, which is handed the body in buffers rather than reading it.
+        OutputStream wrapPush(OutputStream target);
+    }
+
+    // Already compressed, so asking the server to compress them again would only cost CPU on both ends.
+    private static final Set<String> INCOMPRESSIBLE_EXTENSIONS = Set.of(
+            "png", "jpg", "jpeg", "gif", "webp", "ogg", "mp3", "zip", "jar", "gz", "zst", "br", "xz", "7z", "nbt");
+
+    // In order of preference, which is also the order they are offered in. On pack-like JSON brotli sends the
+    // fewest bytes and zstd close to it, while gzip decodes fastest (see ContentDecodersBenchmark).
+    private static final Map<String, Decoder> DECODERS = new LinkedHashMap<>();
+    private static final String ACCEPT_ENCODING;
+
+    static {
+        DECODERS.put("br", new Decoder() {
+            @Override
+            public InputStream wrap(InputStream input) throws IOException {
+                return new BrotliInputStream(input);
+            }
+
+            @Override
+            public OutputStream wrapPush(OutputStream target) {
+                return new PullDecodingOutputStream(target, this);
+            }
+        });
+        DECODERS.put("zstd", new Decoder() {
+            @Override
+            public InputStream wrap(InputStream input) {
+                return new ZstdInputStream(input);
+            }
+
+            @Override
+            public OutputStream wrapPush(OutputStream target) {
+                return new PullDecodingOutputStream(target, this);
+            }
+        });
+        DECODERS.put("gzip", new Decoder() {
+            @Override
+            public InputStream wrap(InputStream input) throws IOException {
+                return new GZIPInputStream(input, 8192);
+            }
+
+            @Override
+            public OutputStream wrapPush(OutputStream target) {
+                return new GzipDecodingOutputStream(target);
+            }
+        });
+        ACCEPT_ENCODING = String.join(", ", DECODERS.keySet());
+    }
+
+    // Null for identity, otherwise the decoder, or an IOException if the encoding is not one that was offered.
+    public static Decoder get(String contentEncoding) throws IOException {
+        String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        if (encoding.isEmpty() || encoding.equals("identity")) return null;
+        Decoder decoder = DECODERS.get(encoding);
+        if (decoder == null) throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        return decoder;
+    }
+
+    public static InputStream wrap(String contentEncoding, InputStream input) throws IOException {
+        Decoder decoder = get(contentEncoding);
+        return decoder == null ? input : decoder.wrap(input);
+    }
+
+    public static String getAcceptEncoding(URI requestUri) {
+        String path = requestUri.getPath() == null ? "" : requestUri.getPath();
+        int dotIndex = path.lastIndexOf('.');
+        if (dotIndex > path.lastIndexOf('/')
+                && INCOMPRESSIBLE_EXTENSIONS.contains(path.substring(dotIndex + 1).toLowerCase(Locale.ROOT))) {
+            return "identity";
+        }
+        return ACCEPT_ENCODING;
+    }
+}
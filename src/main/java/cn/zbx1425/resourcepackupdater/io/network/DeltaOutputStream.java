@@ -0,0 +1,166 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
+import cn.zbx1425.resourcepackupdater.drm.ChunkedEncryption;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Applies a patch to the previous version of a file while the patch arrives. The patch is the magic
+// "RPUDELT1" followed by commands, each starting with a one-byte opcode:
+//   1 COPY [long offset][int length]  bytes taken from the base file
+//   2 ADD  [int length][bytes]        bytes carried in the patch
+//   0 END
+// The result goes to the PackOutputStream of the same file, which checks it against the new hash
+// and only then replaces the base.
+public class DeltaOutputStream extends OutputStream {
+
+    private static final byte[] MAGIC = "RPUDELT1".getBytes(StandardCharsets.US_ASCII);
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_ADD = 2;
+
+    private final Path baseFile;
+    private final OutputStream output;
+
+    // Plain bases are read where they are and ZBXNMB20 ones decrypted a chunk at a time as COPY seeks around.
+    // Only the old ZBXNMB10 format, which cannot be read from the middle, is decrypted into memory.
+    private FileChannel baseChannel;
+    private ChunkedEncryption.RandomAccessReader baseReader;
+    private byte[] baseContent;
+    private ByteBuffer copyBuffer;
+
+    private final byte[] header = new byte[13];
+    private int headerLength = 0;
+    private boolean magicRead = false;
+    private long addRemaining = 0;
+    private boolean ended = false;
+    private boolean closed = false;
+
+    public DeltaOutputStream(Path baseFile, OutputStream output) {
+        this.baseFile = baseFile;
+        this.output = output;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (ended) throw new IOException("Data after end of patch");
+            if (addRemaining > 0) {
+                int n = (int)Math.min(len, addRemaining);
+                output.write(b, off, n);
+                off += n;
+                len -= n;
+                addRemaining -= n;
+                continue;
+            }
+            int n = Math.min(len, getHeaderNeeded() - headerLength);
+            System.arraycopy(b, off, header, headerLength, n);
+            headerLength += n;
+            off += n;
+            len -= n;
+            if (headerLength == getHeaderNeeded()) runCommand();
+        }
+    }
+
+    // Like the bundle framing, a command's length is only known once its opcode is in.
+    private int getHeaderNeeded() throws IOException {
+        if (!magicRead) return MAGIC.length;
+        if (headerLength == 0) return 1;
+        return switch (header[0]) {
+            case OP_END -> 1;
+            case OP_COPY -> 13;
+            case OP_ADD -> 5;
+            default -> throw new IOException("Malformed patch: opcode " + header[0]);
+        };
+    }
+
+    private void runCommand() throws IOException {
+        headerLength = 0;
+        if (!magicRead) {
+            if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) throw new IOException("Not a patch");
+            magicRead = true;
+            return;
+        }
+        ByteBuffer command = ByteBuffer.wrap(header);
+        switch (command.get()) {
+            case OP_END -> ended = true;
+            case OP_COPY -> copyFromBase(command.getLong(), command.getInt());
+            case OP_ADD -> {
+                addRemaining = command.getInt();
+                if (addRemaining < 0) throw new IOException("Malformed patch: ADD of " + addRemaining);
+            }
+        }
+    }
+
+    private void copyFromBase(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) throw new IOException("Malformed patch: COPY of " + length + " at " + offset);
+        openBase();
+        if (baseContent != null) {
+            if (offset + length > baseContent.length) throw new IOException("Patch reads past the end of its base");
+            output.write(baseContent, (int)offset, length);
+            return;
+        }
+        if (copyBuffer == null) copyBuffer = ByteBuffer.allocate(64 * 1024);
+        while (length > 0) {
+            copyBuffer.clear().limit(Math.min(length, copyBuffer.capacity()));
+            int n = baseReader != null
+                    ? baseReader.read(offset, copyBuffer.array(), 0, copyBuffer.limit())
+                    : baseChannel.read(copyBuffer, offset);
+            if (n < 0) throw new IOException("Patch reads past the end of its base");
+            output.write(copyBuffer.array(), 0, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void openBase() throws IOException {
+        if (baseChannel != null || baseReader != null || baseContent != null) return;
+        try (FileInputStream fis = new FileInputStream(baseFile.toFile())) {
+            if (AssetEncryption.isChunkedEncrypted(fis)) {
+                baseReader = new ChunkedEncryption.RandomAccessReader(baseFile.toFile());
+                return;
+            }
+            if (AssetEncryption.isEncrypted(fis)) {
+                try (InputStream input = AssetEncryption.wrapInputStream(fis)) {
+                    baseContent = input.readAllBytes();
+                }
+                return;
+            }
+        }
+        baseChannel = FileChannel.open(baseFile, StandardOpenOption.READ);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        // The base has to be let go of before the output is moved over it.
+        if (baseChannel != null) baseChannel.close();
+        if (baseReader != null) baseReader.close();
+        baseContent = null;
+        if (!ended) {
+            try {
+                // Closing an unfinished PackOutputStream discards its temporary file.
+                output.close();
+            } catch (IOException ignored) {
+            }
+            throw new EOFException("Unexpected end of patch");
+        }
+        output.close();
+    }
+}
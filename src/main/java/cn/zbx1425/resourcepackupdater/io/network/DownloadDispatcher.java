@@ -1,8 +1,18 @@
 package cn.zbx1425.resourcepackupdater.io.network;
 
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
 import cn.zbx1425.resourcepackupdater.io.ProgressReceiver;
 
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -13,7 +23,8 @@ public class DownloadDispatcher {
 
     private final ProgressReceiver progressReceiver;
 
-    public long totalBytes;
+    // Also changed from download threads, as bundles hand back files the server left out.
+    public final AtomicLong totalBytes = new AtomicLong(0);
     public long downloadedBytes;
     public AtomicLong newlyDownloadedBytes = new AtomicLong(0);
 
@@ -21,11 +32,24 @@ public class DownloadDispatcher {
     private long lastSummaryBytes = 0;
     public long summaryBytesPerSecond = 0;
 
-    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final ConcurrencyController concurrency = new ConcurrencyController(
+            ResourcePackUpdater.CONFIG.minDownloadConcurrency.value, ResourcePackUpdater.CONFIG.maxDownloadConcurrency.value, 4);
+    // One thread per possible download; the controller decides how many of them may transfer at once.
+    private final ExecutorService executor = Executors.newFixedThreadPool(concurrency.maxLimit);
     public ConcurrentLinkedQueue<DownloadTask> runningTasks = new ConcurrentLinkedQueue<>();
     public ConcurrentLinkedQueue<DownloadTask> incompleteTasks = new ConcurrentLinkedQueue<>();
     private final ConcurrentLinkedQueue<Runnable> delayedProgresses = new ConcurrentLinkedQueue<>();
 
+    // Downloads wait here for a concurrency slot instead of each parking a thread on it. New and retried
+    // ones are sorted into pendingDownloads, ordered by size, when the next one is taken out.
+    private final List<PendingDownload> newDownloads = new ArrayList<>();
+    private final ArrayDeque<PendingDownload> pendingDownloads = new ArrayDeque<>();
+    private int runningLarge = 0;
+    private final Set<CompletableFuture<Void>> asyncDownloads = ConcurrentHashMap.newKeySet();
+
+    // Set when the files can be fetched from several mirrors.
+    public MirrorSet mirrors;
+
     private Exception taskException = null;
 
     public DownloadDispatcher(ProgressReceiver progressReceiver) {
@@ -35,50 +59,149 @@ public class DownloadDispatcher {
     private final int MAX_RETRIES = 8;
 
     public void dispatch(DownloadTask task, Supplier<OutputStream> target) {
-        totalBytes += task.expectedSize;
+        totalBytes.addAndGet(task.expectedSize);
         incompleteTasks.add(task);
-        executor.submit(() -> {
-            runningTasks.add(task);
-            try {
-                while (true) {
+        synchronized (this) {
+            newDownloads.add(new PendingDownload(task, target));
+        }
+    }
+
+    // Hands out the largest remaining files to half of the slots, so the longest transfers begin early and none
+    // is left to run alone at the end, while the other slots work through the small files from the bottom up.
+    private PendingDownload pollPending() {
+        if (!newDownloads.isEmpty()) {
+            newDownloads.addAll(pendingDownloads);
+            newDownloads.sort(Comparator.comparingLong(pending -> pending.task.expectedSize));
+            pendingDownloads.clear();
+            pendingDownloads.addAll(newDownloads);
+            newDownloads.clear();
+        }
+        PendingDownload pending;
+        if (runningLarge < Math.max(1, concurrency.getLimit() / 2)) {
+            pending = pendingDownloads.pollLast();
+            pending.large = true;
+            runningLarge++;
+        } else {
+            pending = pendingDownloads.pollFirst();
+        }
+        return pending;
+    }
+
+    private synchronized void startPendingDownloads() {
+        while (taskException == null && !(pendingDownloads.isEmpty() && newDownloads.isEmpty()) && concurrency.tryAcquire()) {
+            PendingDownload pending = pollPending();
+            runningTasks.add(pending.task);
+            if (mirrors != null) pending.task.mirror = mirrors.pick(pending.task.expectedSize, pending.task.failedMirror);
+            pending.task.attemptStartTime = System.currentTimeMillis();
+            if (ResourcePackUpdater.CONFIG.asyncDownloads.value) {
+                CompletableFuture<Void> future;
+                try {
+                    if (pending.output == null) pending.output = pending.target.get();
+                    future = pending.task.runAsync(pending.output);
+                } catch (Exception ex) {
+                    future = CompletableFuture.failedFuture(ex);
+                }
+                asyncDownloads.add(future);
+                CompletableFuture<Void> finalFuture = future;
+                future.whenComplete((result, ex) -> {
+                    asyncDownloads.remove(finalFuture);
+                    onDownloadComplete(pending, ex);
+                });
+            } else {
+                executor.submit(() -> {
+                    Exception failure = null;
                     try {
-                        task.runBlocking(target.get());
-                        if (task.failedAttempts > 0) {
-                            delayedProgresses.add(() -> {
-                                progressReceiver.printLogOutsidePolling(String.format("Downloading files ... (Retry %d succeed)",
-                                        task.failedAttempts));
-                            });
-                        }
-                        break;
+                        if (pending.output == null) pending.output = pending.target.get();
+                        pending.task.runBlocking(pending.output);
                     } catch (Exception ex) {
-                        task.failedAttempts++;
-                        if (task.failedAttempts < MAX_RETRIES) {
-                            delayedProgresses.add(() -> {
-                                progressReceiver.printLogOutsidePolling(String.format("Retry (%d/%d) for %s due to error:",
-                                        task.failedAttempts, MAX_RETRIES, task.fileName));
-                                progressReceiver.printLogOutsidePolling(String.format("Retry %d: %s", task.failedAttempts, ex.toString()));
-                            });
-                        } else {
-                            throw ex;
-                        }
+                        failure = ex;
                     }
-                }
-            } catch (Exception e) {
-                taskException = e;
-                executor.shutdownNow();
-                runningTasks.clear();
-                incompleteTasks.clear();
-            } finally {
-                runningTasks.remove(task);
-                incompleteTasks.remove(task);
+                    onDownloadComplete(pending, failure);
+                });
             }
-        });
+        }
+    }
+
+    private void onDownloadComplete(PendingDownload pending, Throwable ex) {
+        DownloadTask task = pending.task;
+        concurrency.release();
+        runningTasks.remove(task);
+        if (task.mirror != null) {
+            mirrors.onAttemptDone(task.mirror, task.expectedSize, System.currentTimeMillis() - task.attemptStartTime, ex == null);
+            task.failedMirror = ex == null ? null : task.mirror;
+            task.mirror = null;
+        }
+        synchronized (this) {
+            if (pending.large) runningLarge--;
+            pending.large = false;
+        }
+        if (ex == null) pending.output = null;
+        // Kept across attempts while the task can resume from what it holds.
+        if (!task.canResume(pending.output)) pending.output = null;
+        if (taskException != null) {
+            discard(pending.output);
+            return;
+        }
+        if (ex == null) {
+            if (task.failedAttempts > 0) {
+                delayedProgresses.add(() -> {
+                    progressReceiver.printLogOutsidePolling(String.format("Downloading files ... (Retry %d succeed)",
+                            task.failedAttempts));
+                });
+            }
+            incompleteTasks.remove(task);
+            startPendingDownloads();
+            return;
+        }
+        while ((ex instanceof CompletionException || ex instanceof UncheckedIOException) && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        Exception cause = ex instanceof Exception ? (Exception)ex : new Exception(ex);
+        if (task.fallback != null) {
+            delayedProgresses.add(() -> {
+                progressReceiver.printLogOutsidePolling(String.format("Falling back for %s due to error:", task.fileName));
+                progressReceiver.printLogOutsidePolling(cause.toString());
+            });
+            discard(pending.output);
+            totalBytes.addAndGet(-task.expectedSize);
+            task.fallback.run();
+            incompleteTasks.remove(task);
+            startPendingDownloads();
+            return;
+        }
+        concurrency.onFailure();
+        task.failedAttempts++;
+        if (task.failedAttempts < MAX_RETRIES) {
+            delayedProgresses.add(() -> {
+                progressReceiver.printLogOutsidePolling(String.format("Retry (%d/%d) for %s due to error:",
+                        task.failedAttempts, MAX_RETRIES, task.fileName));
+                progressReceiver.printLogOutsidePolling(String.format("Retry %d: %s", task.failedAttempts, cause.toString()));
+            });
+            synchronized (this) {
+                newDownloads.add(pending);
+            }
+            startPendingDownloads();
+        } else {
+            synchronized (this) {
+                if (taskException == null) taskException = cause;
+                discard(pending.output);
+                pendingDownloads.forEach(other -> discard(other.output));
+                newDownloads.forEach(other -> discard(other.output));
+                pendingDownloads.clear();
+                newDownloads.clear();
+            }
+            executor.shutdownNow();
+            asyncDownloads.forEach(future -> future.cancel(true));
+            runningTasks.clear();
+            incompleteTasks.clear();
+        }
     }
 
     public void updateSummary() {
         while (!delayedProgresses.isEmpty()) delayedProgresses.poll().run();
         long newBytes = newlyDownloadedBytes.getAndSet(0);
         downloadedBytes += newBytes;
+        concurrency.onProgress(Math.max(0, newBytes), incompleteTasks.size() > concurrency.getLimit());
         if (lastSummaryTime == -1) {
             lastSummaryTime = System.currentTimeMillis();
             lastSummaryBytes = downloadedBytes;
@@ -91,11 +214,11 @@ public class DownloadDispatcher {
             lastSummaryTime = currentTime;
             lastSummaryBytes = downloadedBytes;
         }
-        String message = String.format(": % 5.2f MiB / % 5.2f MiB; %5d KiB/s",
-                downloadedBytes / 1048576.0, totalBytes / 1048576.0, summaryBytesPerSecond / 1024);
-        progressReceiver.setProgress(downloadedBytes * 1f / totalBytes, 0);
+        String message = String.format(": % 5.2f MiB / % 5.2f MiB; %5d KiB/s; ETA %s",
+                downloadedBytes / 1048576.0, totalBytes.get() / 1048576.0, summaryBytesPerSecond / 1024, getEtaText());
+        progressReceiver.setProgress(downloadedBytes * 1f / totalBytes.get(), 0);
 
-        String runningProgress = incompleteTasks.size() + " Files Remaining\n" +
+        String runningProgress = incompleteTasks.size() + " Files Remaining, " + concurrency.getLimit() + " Parallel\n" +
                 String.join("\n", runningTasks.stream()
                 .map(task -> "  " + (
                     task.totalBytes == 0 ? "WAIT" :
@@ -107,7 +230,17 @@ public class DownloadDispatcher {
         progressReceiver.setInfo(runningProgress, message);
     }
 
+    // Remaining bytes at the smoothed rate; the rate already reflects how well the slots are being filled.
+    private String getEtaText() {
+        if (summaryBytesPerSecond <= 0) return "--:--";
+        long seconds = Math.max(0, totalBytes.get() - downloadedBytes) / summaryBytesPerSecond;
+        return seconds >= 3600
+                ? String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60)
+                : String.format("%02d:%02d", seconds / 60, seconds % 60);
+    }
+
     public boolean tasksFinished() throws Exception {
+        startPendingDownloads();
         if (taskException != null) {
             while (!delayedProgresses.isEmpty()) delayedProgresses.poll().run();
             throw taskException;
@@ -115,11 +248,38 @@ public class DownloadDispatcher {
         return incompleteTasks.isEmpty();
     }
 
+    protected void onRequestLatency(long latencyMillis) {
+        concurrency.onRequestLatency(latencyMillis);
+    }
+
     protected void onDownloadProgress(long deltaBytes) {
         newlyDownloadedBytes.addAndGet(deltaBytes);
     }
 
     public void close() {
         executor.shutdown();
+        asyncDownloads.forEach(future -> future.cancel(true));
+    }
+
+    private static void discard(OutputStream output) {
+        if (output == null) return;
+        try {
+            // Closing an unfinished PackOutputStream deletes its temporary file.
+            output.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    private static class PendingDownload {
+
+        public final DownloadTask task;
+        public final Supplier<OutputStream> target;
+        public OutputStream output;
+        public boolean large;
+
+        public PendingDownload(DownloadTask task, Supplier<OutputStream> target) {
+            this.task = task;
+            this.target = target;
+        }
     }
 }
@@ -6,12 +6,17 @@ import org.apache.commons.io.IOUtils;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
-import java.util.Locale;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 public class DownloadTask {
 
@@ -21,37 +26,77 @@ public class DownloadTask {
 
     protected final DownloadDispatcher dispatcher;
     private final URI requestUri;
+    // Sent as a POST body when set, as for a bundle of small files. Asked again for every attempt.
+    private final Supplier<String> requestBody;
 
     public String fileName;
 
     public int failedAttempts = 0;
+    // Set for optional downloads such as patches: on failure this runs in place of any retry.
+    public Runnable fallback;
+    // Validator of the last full response, kept so a failed attempt can be continued with a Range request.
+    private String rangeValidator;
+    // The mirror of the current attempt when downloads are spread over several; requestUri is on the primary one.
+    public MirrorSet.Mirror mirror;
+    public MirrorSet.Mirror failedMirror;
+    public long attemptStartTime;
 
     public DownloadTask(DownloadDispatcher dispatcher, String url, String fileName, long expectedSize) {
+        this(dispatcher, url, fileName, expectedSize, null);
+    }
+
+    public DownloadTask(DownloadDispatcher dispatcher, String url, String fileName, long expectedSize, Supplier<String> requestBody) {
         this.dispatcher = dispatcher;
         this.requestUri = URI.create(url);
         this.fileName = fileName;
         this.expectedSize = expectedSize;
+        this.requestBody = requestBody;
     }
 
     public void runBlocking(OutputStream target) throws IOException {
         // ResourcePackUpdater.LOGGER.info("Starting download: " + fileName);
-        HttpResponse<InputStream> httpResponse = sendHttpRequest(requestUri);
+        if (shouldSegment(target)) {
+            CompletableFuture<Void> future = runSegmented((PackOutputStream)target);
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                future.cancel(true);
+                throw new IOException(ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause() instanceof UncheckedIOException uncheckedEx ? uncheckedEx.getCause() : ex.getCause();
+                throw cause instanceof IOException ioEx ? ioEx : new IOException(cause);
+            }
+            return;
+        }
+        long resumeFrom = getResumeOffset(target);
+        long requestStartTime = System.currentTimeMillis();
+        HttpResponse<InputStream> httpResponse = sendHttpRequest(buildRequest(resumeFrom));
+        dispatcher.onRequestLatency(System.currentTimeMillis() - requestStartTime);
 
         if (httpResponse.statusCode() >= 400) {
+            onRejected(resumeFrom, target);
             throw new IOException("Server returned HTTP " + httpResponse.statusCode() + " "
                     + new String(httpResponse.body().readAllBytes(), StandardCharsets.UTF_8));
         }
+        long offset;
+        try {
+            offset = beginBody(httpResponse.statusCode(), httpResponse.headers(), resumeFrom, target);
+        } catch (IOException ex) {
+            httpResponse.body().close();
+            throw ex;
+        }
+        final long[] accountedAmount = {offset};
+        dispatcher.onDownloadProgress(offset);
 
-        totalBytes = Long.parseLong(httpResponse.headers().firstValue("Content-Length").orElse(Long.toString(expectedSize)));
-        final long[] accountedAmount = {0};
-
+        BufferedOutputStream bos = new BufferedOutputStream(target);
         try {
-            try (BufferedOutputStream bos = new BufferedOutputStream(target); InputStream inputStream = unwrapHttpResponse(httpResponse)) {
+            try (InputStream inputStream = unwrapHttpResponse(httpResponse)) {
                 final ProgressOutputStream pOfs = new ProgressOutputStream(bos, new ProgressOutputStream.WriteListener() {
                     final long noticeDivisor = 8192;
 
                     @Override
                     public void registerWrite(long amountOfBytesWritten) throws IOException {
+                        amountOfBytesWritten += offset;
                         if (accountedAmount[0] / noticeDivisor != amountOfBytesWritten / noticeDivisor) {
                             downloadedBytes += (amountOfBytesWritten - accountedAmount[0]);
                             dispatcher.onDownloadProgress((amountOfBytesWritten - accountedAmount[0]));
@@ -61,17 +106,163 @@ public class DownloadTask {
                 });
                 IOUtils.copy(new BufferedInputStream(inputStream), pOfs);
             }
-            target.close();
+            bos.close();
         } catch (Exception ex) {
             dispatcher.onDownloadProgress(-accountedAmount[0]);
             downloadedBytes = 0;
+            try {
+                // What arrived intact is worth keeping if the next attempt can continue from it.
+                bos.flush();
+            } catch (IOException ignored) {
+            }
+            releaseFailedTarget(target);
             throw ex;
         }
         dispatcher.onDownloadProgress(totalBytes - accountedAmount[0]);
         downloadedBytes = totalBytes;
     }
 
+    // Same transfer as runBlocking, but without holding a thread while waiting on the network.
+    public CompletableFuture<Void> runAsync(OutputStream target) {
+        if (shouldSegment(target)) return runSegmented((PackOutputStream)target);
+        long resumeFrom = getResumeOffset(target);
+        long requestStartTime = System.currentTimeMillis();
+        CompletableFuture<HttpResponse<Void>> responseFuture = ResourcePackUpdater.HTTP_CLIENT.sendAsync(
+                buildRequest(resumeFrom), responseInfo -> {
+            dispatcher.onRequestLatency(System.currentTimeMillis() - requestStartTime);
+            if (responseInfo.statusCode() >= 400) {
+                onRejected(resumeFrom, target);
+                return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8), body -> {
+                    throw new UncheckedIOException(new IOException("Server returned HTTP " + responseInfo.statusCode() + " " + body));
+                });
+            }
+            ContentDecoders.Decoder decoder;
+            long offset;
+            try {
+                decoder = ContentDecoders.get(responseInfo.headers().firstValue("Content-Encoding").orElse(""));
+                offset = beginBody(responseInfo.statusCode(), responseInfo.headers(), resumeFrom, target);
+            } catch (IOException ex) {
+                return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.discarding(), body -> {
+                    throw new UncheckedIOException(ex);
+                });
+            }
+            OutputStream output = decoder == null ? target : decoder.wrapPush(target);
+            dispatcher.onDownloadProgress(offset);
+            return new StreamingBodySubscriber(this, target, output, offset);
+        });
+        CompletableFuture<Void> result = responseFuture.thenApply(response -> null);
+        // Cancelling a dependent stage does not reach the exchange by itself.
+        result.whenComplete((ignored, ex) -> {
+            if (result.isCancelled()) responseFuture.cancel(true);
+        });
+        return result;
+    }
+
+    public static boolean shouldSegment(long expectedSize) {
+        return ResourcePackUpdater.CONFIG.downloadSegments.value > 1
+                && expectedSize >= ResourcePackUpdater.CONFIG.segmentedDownloadMiB.value * 1048576L;
+    }
+
+    private boolean shouldSegment(OutputStream target) {
+        return shouldSegment(expectedSize) && target instanceof PackOutputStream;
+    }
+
+    // Large files come down as parallel ranges into a part file, which is then hashed and committed as a whole.
+    private CompletableFuture<Void> runSegmented(PackOutputStream target) {
+        Path partFile = target.getPartFile();
+        AtomicLong accountedAmount = new AtomicLong();
+        totalBytes = expectedSize;
+        downloadedBytes = 0;
+        long requestStartTime = System.currentTimeMillis();
+        SegmentedDownload download = new SegmentedDownload(getRequestUri(), expectedSize, partFile,
+                ResourcePackUpdater.CONFIG.downloadSegments.value, newBytes -> {
+            if (accountedAmount.getAndAdd(newBytes) == 0) dispatcher.onRequestLatency(System.currentTimeMillis() - requestStartTime);
+            onAsyncProgress(newBytes);
+        });
+        CompletableFuture<Void> result = download.start().thenApply(ignored -> {
+            try {
+                target.commitFile(partFile);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            onAsyncFinished(accountedAmount.get());
+            return null;
+        });
+        result.whenComplete((ignored, ex) -> {
+            if (ex == null) return;
+            if (result.isCancelled()) download.cancel();
+            onAsyncFailed(accountedAmount.get(), target);
+            try {
+                Files.deleteIfExists(partFile);
+            } catch (IOException ignoredEx) {
+            }
+        });
+        return result;
+    }
+
+    protected void onAsyncProgress(long newBytes) {
+        downloadedBytes += newBytes;
+        dispatcher.onDownloadProgress(newBytes);
+    }
+
+    protected void onAsyncFinished(long receivedBytes) {
+        dispatcher.onDownloadProgress(totalBytes - receivedBytes);
+        downloadedBytes = totalBytes;
+    }
+
+    protected void onAsyncFailed(long receivedBytes, OutputStream target) {
+        dispatcher.onDownloadProgress(-receivedBytes);
+        downloadedBytes = 0;
+        releaseFailedTarget(target);
+    }
+
+    // Whether a failed attempt left output the next attempt can continue with a Range request.
+    public boolean canResume(OutputStream target) {
+        return rangeValidator != null && target instanceof PackOutputStream packOutput && packOutput.getWrittenBytes() > 0;
+    }
+
+    private long getResumeOffset(OutputStream target) {
+        return canResume(target) ? ((PackOutputStream)target).getWrittenBytes() : 0;
+    }
+
+    private void releaseFailedTarget(OutputStream target) {
+        if (canResume(target)) return;
+        try {
+            // Closing an unfinished PackOutputStream discards its temporary file.
+            target.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    private void onRejected(long resumeFrom, OutputStream target) {
+        if (resumeFrom == 0) return;
+        // A rejected Range request is not retried as one, so a 416 cannot repeat forever.
+        rangeValidator = null;
+        releaseFailedTarget(target);
+    }
+
+    // Returns the offset the body continues from, restarting the target when the whole file is sent instead.
+    private long beginBody(int statusCode, HttpHeaders headers, long resumeFrom, OutputStream target) throws IOException {
+        long offset;
+        try {
+            offset = getRangeStart(statusCode, headers, resumeFrom);
+        } catch (IOException ex) {
+            onRejected(resumeFrom, target);
+            throw ex;
+        }
+        if (offset == 0 && resumeFrom > 0) ((PackOutputStream)target).restart();
+        rangeValidator = offset > 0 ? rangeValidator : getRangeValidator(headers);
+        totalBytes = offset + headers.firstValueAsLong("Content-Length").orElse(expectedSize - offset);
+        downloadedBytes = offset;
+        return offset;
+    }
+
     public static HttpResponse<InputStream> sendHttpRequest(URI requestUri) throws IOException {
+        return sendHttpRequest(requestUri, 0, null);
+    }
+
+    // With rangeValidator set and resumeFrom above zero, asks for the rest of the file as long as it is unchanged.
+    public static HttpResponse<InputStream> sendHttpRequest(URI requestUri, long resumeFrom, String rangeValidator) throws IOException {
         /*
         try {
             MessageDigest md5 = MessageDigest.getInstance("MD5");
@@ -84,12 +275,10 @@ public class DownloadTask {
         }
          */
 
-        HttpRequest httpRequest = HttpRequest.newBuilder(requestUri)
-                .timeout(Duration.ofSeconds(20))
-                .setHeader("User-Agent", ResourcePackUpdater.USER_AGENT_NAME + "/" + ResourcePackUpdater.MOD_VERSION)
-                .setHeader("Accept-Encoding", "gzip")
-                .GET()
-                .build();
+        return sendHttpRequest(buildHttpRequest(requestUri, resumeFrom, rangeValidator));
+    }
+
+    private static HttpResponse<InputStream> sendHttpRequest(HttpRequest httpRequest) throws IOException {
         HttpResponse<InputStream> httpResponse;
         try {
             httpResponse = ResourcePackUpdater.HTTP_CLIENT.send(httpRequest, HttpResponse.BodyHandlers.ofInputStream());
@@ -99,12 +288,60 @@ public class DownloadTask {
         return httpResponse;
     }
 
+    private URI getRequestUri() {
+        return mirror == null ? requestUri : mirror.resolve(requestUri);
+    }
+
+    private HttpRequest buildRequest(long resumeFrom) {
+        URI requestUri = getRequestUri();
+        if (requestBody == null) return buildHttpRequest(requestUri, resumeFrom, rangeValidator);
+        return newRequestBuilder(requestUri)
+                .setHeader("Accept-Encoding", ContentDecoders.getAcceptEncoding(requestUri))
+                .setHeader("Content-Type", "text/plain; charset=utf-8")
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody.get(), StandardCharsets.UTF_8))
+                .build();
+    }
+
+    public static HttpRequest.Builder newRequestBuilder(URI requestUri) {
+        return HttpRequest.newBuilder(requestUri)
+                .timeout(REQUEST_TIMEOUT)
+                .setHeader("User-Agent", ResourcePackUpdater.USER_AGENT_NAME + "/" + ResourcePackUpdater.MOD_VERSION);
+    }
+
+    private static HttpRequest buildHttpRequest(URI requestUri, long resumeFrom, String rangeValidator) {
+        HttpRequest.Builder builder = newRequestBuilder(requestUri);
+        if (resumeFrom > 0 && rangeValidator != null) {
+            // Ranges of an encoded response would not line up with the bytes already written.
+            builder.setHeader("Accept-Encoding", "identity")
+                    .setHeader("Range", "bytes=" + resumeFrom + "-")
+                    .setHeader("If-Range", rangeValidator);
+        } else {
+            builder.setHeader("Accept-Encoding", ContentDecoders.getAcceptEncoding(requestUri));
+        }
+        return builder.GET().build();
+    }
+
+    // Only covers the wait for the response headers; a stalled body is caught by IdleWatchdog instead.
+    public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(20);
+
+    // An ETag or Last-Modified usable in If-Range, or null if the server does not take byte ranges for this file.
+    public static String getRangeValidator(HttpHeaders headers) {
+        if (!headers.firstValue("Accept-Ranges").orElse("").equalsIgnoreCase("bytes")) return null;
+        // If-Range only takes strong validators.
+        String eTag = headers.firstValue("ETag").orElse(null);
+        if (eTag != null && !eTag.startsWith("W/")) return eTag;
+        return headers.firstValue("Last-Modified").orElse(null);
+    }
+
+    // Where the body of a response to a request from resumeFrom starts: resumeFrom for a matching 206, 0 for a 200.
+    public static long getRangeStart(int statusCode, HttpHeaders headers, long resumeFrom) throws IOException {
+        if (statusCode != 206) return 0;
+        String contentRange = headers.firstValue("Content-Range").orElse("");
+        if (resumeFrom > 0 && contentRange.startsWith("bytes " + resumeFrom + "-")) return resumeFrom;
+        throw new IOException("Unexpected partial response: " + contentRange);
+    }
+
     public static InputStream unwrapHttpResponse(HttpResponse<InputStream> response) throws IOException {
-        String contentEncoding = response.headers().firstValue("Content-Encoding").orElse("").toLowerCase(Locale.ROOT);
-        return switch (contentEncoding) {
-            case "" -> response.body();
-            case "gzip" -> new GZIPInputStream(response.body());
-            default -> throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
-        };
+        return ContentDecoders.wrap(response.headers().firstValue("Content-Encoding").orElse(""), IdleWatchdog.wrap(response.body()));
     }
 }
@@ -0,0 +1,82 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+import java.util.zip.ZipException;
+
+// Push-style counterpart of GZIPInputStream for bodies that arrive as buffers rather than a stream.
+// The trailer CRC is not checked, as every download is verified against its SHA-1 anyway.
+public class GzipDecodingOutputStream extends OutputStream {
+
+    private final Inflater inflater = new Inflater(true);
+    private final InflaterOutputStream inflaterOutput;
+
+    private byte[] header = new byte[64];
+    private int headerLength = 0;
+
+    public GzipDecodingOutputStream(OutputStream target) {
+        this.inflaterOutput = new InflaterOutputStream(target, inflater, 64 * 1024);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (header == null) {
+            inflaterOutput.write(b, off, len);
+            return;
+        }
+        if (headerLength + len > header.length) {
+            header = Arrays.copyOf(header, Math.max(header.length * 2, headerLength + len));
+        }
+        System.arraycopy(b, off, header, headerLength, len);
+        headerLength += len;
+        int headerEnd = parseHeader(header, headerLength);
+        if (headerEnd < 0) return;
+        byte[] buffered = header;
+        header = null;
+        inflaterOutput.write(buffered, headerEnd, headerLength - headerEnd);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (header != null) throw new EOFException("Unexpected end of GZIP header");
+            inflaterOutput.finish();
+            if (!inflater.finished()) throw new EOFException("Unexpected end of GZIP stream");
+        } finally {
+            inflaterOutput.close();
+            inflater.end();
+        }
+    }
+
+    // Returns where the deflate data begins, or -1 if the header is not complete yet.
+    private static int parseHeader(byte[] b, int length) throws IOException {
+        if (length < 10) return -1;
+        if (b[0] != (byte)0x1f || b[1] != (byte)0x8b || b[2] != 8) throw new ZipException("Not in GZIP format");
+        int flags = b[3] & 0xFF;
+        int pos = 10;
+        if ((flags & 4) != 0) {
+            if (length < pos + 2) return -1;
+            pos += 2 + ((b[pos] & 0xFF) | ((b[pos + 1] & 0xFF) << 8));
+        }
+        if ((flags & 8) != 0) pos = skipZeroTerminated(b, pos, length);
+        if (pos >= 0 && (flags & 16) != 0) pos = skipZeroTerminated(b, pos, length);
+        if (pos >= 0 && (flags & 2) != 0) pos += 2;
+        return pos < 0 || pos > length ? -1 : pos;
+    }
+
+    private static int skipZeroTerminated(byte[] b, int pos, int length) {
+        for (int i = pos; i < length; i++) {
+            if (b[i] == 0) return i + 1;
+        }
+        return -1;
+    }
+}
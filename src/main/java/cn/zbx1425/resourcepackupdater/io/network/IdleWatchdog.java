@@ -0,0 +1,114 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Gives up on a response body once nothing has arrived for IDLE_TIMEOUT. The request timeout only covers
+// the wait for the headers, so without this a server that stops sending mid-body would hang the transfer.
+public class IdleWatchdog {
+
+    public static final Duration IDLE_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RPU Idle Watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Runnable onTimeout;
+    private volatile long lastActivity = System.nanoTime();
+    private ScheduledFuture<?> check;
+    private boolean stopped = false;
+    private volatile boolean timedOut = false;
+
+    // Starts watching right away; onTimeout runs on the watchdog thread.
+    public IdleWatchdog(Runnable onTimeout) {
+        this.onTimeout = onTimeout;
+        schedule(IDLE_TIMEOUT.toNanos());
+    }
+
+    public void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (check != null) check.cancel(false);
+    }
+
+    public boolean hasTimedOut() {
+        return timedOut;
+    }
+
+    public static HttpTimeoutException newTimeoutException() {
+        return new HttpTimeoutException("No data received for " + IDLE_TIMEOUT.toSeconds() + " seconds");
+    }
+
+    private synchronized void schedule(long delayNanos) {
+        if (!stopped) check = SCHEDULER.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void check() {
+        long idleNanos = System.nanoTime() - lastActivity;
+        if (idleNanos < IDLE_TIMEOUT.toNanos()) {
+            schedule(IDLE_TIMEOUT.toNanos() - idleNanos);
+            return;
+        }
+        synchronized (this) {
+            if (stopped) return;
+            stopped = true;
+        }
+        timedOut = true;
+        onTimeout.run();
+    }
+
+    // For bodies read by blocking calls. Closing the stream is what wakes a read stuck inside the HttpClient.
+    public static InputStream wrap(InputStream input) {
+        return new FilterInputStream(input) {
+
+            private final IdleWatchdog watchdog = new IdleWatchdog(() -> {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            });
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    int b = super.read();
+                    if (b < 0 && watchdog.hasTimedOut()) throw newTimeoutException();
+                    watchdog.touch();
+                    return b;
+                } catch (IOException ex) {
+                    throw watchdog.hasTimedOut() ? newTimeoutException() : ex;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    int n = super.read(b, off, len);
+                    if (n < 0 && watchdog.hasTimedOut()) throw newTimeoutException();
+                    watchdog.touch();
+                    return n;
+                } catch (IOException ex) {
+                    throw watchdog.hasTimedOut() ? newTimeoutException() : ex;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                watchdog.stop();
+                super.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,129 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Mirrors holding the same pack, which the downloads of one sync are spread over. Tasks are created with
+// URLs on the primary mirror and rewritten onto whichever mirror is picked for each attempt.
+// Each attempt goes to the mirror expected to finish it first, given the bytes already in flight there
+// and its measured throughput, so the load ends up in proportion to speed. A mirror failing several times
+// in a row is left out for the rest of the sync, as long as another one remains.
+public class MirrorSet {
+
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    // Weight of each finished transfer in the throughput estimate.
+    private static final double SMOOTH_FACTOR = 0.2;
+
+    public final String primaryBaseUrl;
+    public final List<Mirror> mirrors = new ArrayList<>();
+
+    public MirrorSet(String primaryBaseUrl, List<String> baseUrls) {
+        this.primaryBaseUrl = primaryBaseUrl;
+        for (String baseUrl : baseUrls) mirrors.add(new Mirror(this, baseUrl));
+    }
+
+    // Avoids the mirror a task last failed on, unless there is no other.
+    public synchronized Mirror pick(long expectedSize, Mirror avoid) {
+        double knownSum = 0;
+        int knownCount = 0;
+        for (Mirror mirror : mirrors) {
+            if (mirror.bytesPerMilli > 0) {
+                knownSum += mirror.bytesPerMilli;
+                knownCount++;
+            }
+        }
+        // Unmeasured mirrors are assumed to be average, so each of them gets tried early on.
+        double assumedSpeed = knownCount > 0 ? knownSum / knownCount : 1;
+        Mirror best = null;
+        double bestFinish = Double.MAX_VALUE;
+        for (Mirror mirror : mirrors) {
+            if (mirror.disabled || (mirror == avoid && getUsableCount() > 1)) continue;
+            double speed = mirror.bytesPerMilli > 0 ? mirror.bytesPerMilli : assumedSpeed;
+            double finish = (mirror.bytesInFlight + Math.max(1, expectedSize)) / speed;
+            if (finish < bestFinish) {
+                best = mirror;
+                bestFinish = finish;
+            }
+        }
+        best.bytesInFlight += expectedSize;
+        return best;
+    }
+
+    public synchronized void onAttemptDone(Mirror mirror, long expectedSize, long elapsedMillis, boolean success) {
+        mirror.bytesInFlight -= expectedSize;
+        if (success) {
+            mirror.consecutiveFailures = 0;
+            double speed = expectedSize / (double)Math.max(1, elapsedMillis);
+            mirror.bytesPerMilli = mirror.bytesPerMilli > 0 ? mirror.bytesPerMilli * (1 - SMOOTH_FACTOR) + speed * SMOOTH_FACTOR : speed;
+        } else if (++mirror.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES && !mirror.disabled && getUsableCount() > 1) {
+            mirror.disabled = true;
+            ResourcePackUpdater.LOGGER.warn("Mirror " + mirror.baseUrl + " keeps failing, leaving it out of this sync");
+        }
+    }
+
+    private int getUsableCount() {
+        return (int)mirrors.stream().filter(mirror -> !mirror.disabled).count();
+    }
+
+    // Asks every mirror about the same file at once and returns the base URL of the first to answer.
+    // Servers that refuse HEAD itself (405, 501) still count, as they answered; the real fetch uses GET.
+    public static String findFastest(List<String> baseUrls, String probePath) throws IOException {
+        CompletableFuture<String> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        List<CompletableFuture<HttpResponse<Void>>> probes = new ArrayList<>();
+        for (String baseUrl : baseUrls) {
+            HttpRequest request = DownloadTask.newRequestBuilder(URI.create(baseUrl + probePath))
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+            CompletableFuture<HttpResponse<Void>> probe = ResourcePackUpdater.HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+            probe.whenComplete((response, ex) -> {
+                if (ex == null && (response.statusCode() < 400 || response.statusCode() == 405 || response.statusCode() == 501)) {
+                    winner.complete(baseUrl);
+                } else if (failures.incrementAndGet() == baseUrls.size()) {
+                    winner.completeExceptionally(ex != null ? ex : new IOException("Server returned HTTP " + response.statusCode()));
+                }
+            });
+            probes.add(probe);
+        }
+        try {
+            return winner.get(DownloadTask.REQUEST_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            throw new IOException("No mirror is reachable", ex.getCause());
+        } catch (InterruptedException | TimeoutException ex) {
+            throw new IOException("No mirror is reachable", ex);
+        } finally {
+            probes.forEach(probe -> probe.cancel(true));
+        }
+    }
+
+    public static class Mirror {
+
+        private final MirrorSet owner;
+        public final String baseUrl;
+        public long bytesInFlight = 0;
+        public double bytesPerMilli = 0;
+        public int consecutiveFailures = 0;
+        public boolean disabled = false;
+
+        public Mirror(MirrorSet owner, String baseUrl) {
+            this.owner = owner;
+            this.baseUrl = baseUrl;
+        }
+
+        public URI resolve(URI primaryUri) {
+            String url = primaryUri.toString();
+            if (!url.startsWith(owner.primaryBaseUrl)) return primaryUri;
+            return URI.create(baseUrl + url.substring(owner.primaryBaseUrl.length()));
+        }
+    }
+}
@@ -1,64 +1,155 @@
 package cn.zbx1425.resourcepackupdater.io.network;
 
 import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
-import cn.zbx1425.resourcepackupdater.io.HashCache;
+import cn.zbx1425.resourcepackupdater.io.LocalMetadata;
 import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.Arrays;
 
+// Writes into a temporary sibling of the target while hashing the plain bytes on the way through,
+// and only moves it over the target once the hash matches. A failed download leaves the target untouched.
 public class PackOutputStream extends OutputStream {
 
     private final boolean encrypt;
     private final Path target;
-    private final HashCache hashCache;
+    private final Path tempFile;
+    private final LocalMetadata localMetadata;
     private final byte[] expectedSha;
-    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
+    private final MessageDigest digest = DigestUtils.getSha1Digest();
+    private OutputStream output;
+    // Set for plain files, which take buffers from the async engine without copying them.
+    private FileChannel channel;
+    private long writtenBytes = 0;
     private boolean closed = false;
 
-    public PackOutputStream(Path target, boolean encrypt, HashCache hashCache, byte[] expectedSha) {
+    public PackOutputStream(Path target, boolean encrypt, LocalMetadata localMetadata, byte[] expectedSha) {
         this.encrypt = encrypt;
         this.target = target;
+        this.tempFile = target.resolveSibling(target.getFileName() + ".rpu-tmp");
         this.expectedSha = expectedSha;
-        this.hashCache = hashCache;
+        this.localMetadata = localMetadata;
     }
 
-    @Override
-    public void write(int b) throws IOException {
-        buffer.write(b);
+    private OutputStream getOutput() throws IOException {
+        if (output == null) {
+            if (encrypt) {
+                output = AssetEncryption.openEncryptedOutputStream(tempFile.toFile());
+            } else {
+                channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                output = Channels.newOutputStream(channel);
+            }
+        }
+        return output;
     }
 
     @Override
-    public void write(byte[] b) throws IOException {
-        buffer.write(b);
+    public void write(int b) throws IOException {
+        getOutput().write(b);
+        digest.update((byte)b);
+        writtenBytes++;
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        buffer.write(b, off, len);
+        getOutput().write(b, off, len);
+        digest.update(b, off, len);
+        writtenBytes += len;
+    }
+
+    public void write(ByteBuffer buffer) throws IOException {
+        OutputStream output = getOutput();
+        digest.update(buffer.duplicate());
+        writtenBytes += buffer.remaining();
+        if (channel != null) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } else if (buffer.hasArray()) {
+            output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            output.write(bytes);
+        }
+    }
+
+    public Path getPartFile() {
+        return target.resolveSibling(target.getFileName() + ".rpu-part");
+    }
+
+    // Takes a complete plain file fetched by other means in place of writing its bytes, then commits as close() does.
+    public void commitFile(Path plainFile) throws IOException {
+        restart();
+        if (encrypt) {
+            try (InputStream input = Files.newInputStream(plainFile)) {
+                IOUtils.copy(input, this, 64 * 1024);
+            }
+            Files.delete(plainFile);
+        } else {
+            try (InputStream input = Files.newInputStream(plainFile)) {
+                DigestUtils.updateDigest(digest, input);
+            }
+            Files.move(plainFile, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            output = OutputStream.nullOutputStream();
+        }
+        close();
+    }
+
+    // Plain bytes taken so far, which is where a resumed download continues. Zero once closed.
+    public long getWrittenBytes() {
+        return closed ? 0 : writtenBytes;
+    }
+
+    // Drops everything written so far, for when a resumed download has to start over.
+    public void restart() throws IOException {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException ignored) {
+            }
+            Files.deleteIfExists(tempFile);
+        }
+        output = null;
+        channel = null;
+        digest.reset();
+        writtenBytes = 0;
     }
 
     @Override
     public void close() throws IOException {
         if (closed) return;
         closed = true;
-        if (encrypt) {
-            AssetEncryption.writeEncrypted(buffer.toByteArray(), target.toFile());
-        } else {
-            try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(target.toFile()))) {
-                bos.write(buffer.toByteArray());
+        byte[] localSha;
+        try {
+            getOutput().close();
+            localSha = digest.digest();
+            if (!Arrays.equals(localSha, expectedSha)) {
+                throw new IOException("SHA1 mismatch: " + Hex.encodeHexString(localSha) + " downloaded, " +
+                        Hex.encodeHexString(expectedSha) + " expected");
             }
+            try {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            Files.deleteIfExists(tempFile);
+            throw ex;
         }
-        byte[] localSha = hashCache.getDigestNoCache(target.toFile());
-        if (!Arrays.equals(localSha, expectedSha)) {
-            throw new IOException("SHA1 mismatch: " + Hex.encodeHexString(localSha) + " downloaded, " +
-                    Hex.encodeHexString(expectedSha) + " expected");
-        }
-        super.close();
+        localMetadata.hashCache.putDigest(target.toFile(), localSha);
+        localMetadata.onFileWritten(target, localSha);
     }
 }
@@ -0,0 +1,138 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Push-style front for decoders that only come as an InputStream, such as brotli and zstd.
+// The decoder reads on a worker thread from a short queue of the buffers written here. A write waits
+// while the queue is full, which holds the HttpClient back just like a slow reader would.
+public class PullDecodingOutputStream extends OutputStream {
+
+    private static final int QUEUE_CAPACITY = 16;
+    private static final byte[] END_OF_INPUT = new byte[0];
+
+    private static final ExecutorService DECODER_POOL = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "RPU Decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final OutputStream target;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Future<?> decoding;
+    private boolean closed = false;
+
+    public PullDecodingOutputStream(OutputStream target, ContentDecoders.Decoder decoder) {
+        this.target = target;
+        this.decoding = DECODER_POOL.submit(() -> {
+            try (InputStream input = decoder.wrap(new QueueInputStream())) {
+                input.transferTo(target);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return;
+        enqueue(Arrays.copyOfRange(b, off, off + len));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try (target) {
+            enqueue(END_OF_INPUT);
+            decoding.get();
+        } catch (InterruptedException ex) {
+            decoding.cancel(true);
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            throw asIOException(ex.getCause());
+        }
+    }
+
+    // For transfers that fail before the body is complete. The target is left open for the caller to discard.
+    public void abort() {
+        closed = true;
+        decoding.cancel(true);
+    }
+
+    private void enqueue(byte[] buffer) throws IOException {
+        try {
+            while (!queue.offer(buffer, 100, TimeUnit.MILLISECONDS)) {
+                // The decoder has stopped taking input, either because it failed or because the stream ended early.
+                if (decoding.isDone()) break;
+            }
+            if (decoding.isDone() && buffer != END_OF_INPUT) {
+                try {
+                    decoding.get();
+                } catch (ExecutionException ex) {
+                    throw asIOException(ex.getCause());
+                } catch (CancellationException ex) {
+                    throw new IOException("Decoding was aborted");
+                }
+                throw new IOException("Unexpected data after the end of the encoded stream");
+            }
+        } catch (InterruptedException ex) {
+            decoding.cancel(true);
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static IOException asIOException(Throwable throwable) {
+        return throwable instanceof IOException ioException ? ioException : new IOException(throwable);
+    }
+
+    private class QueueInputStream extends InputStream {
+
+        private byte[] current = new byte[0];
+        private int position = 0;
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureData()) return -1;
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!ensureData()) return -1;
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        private boolean ensureData() throws IOException {
+            while (position >= current.length) {
+                if (current == END_OF_INPUT) return false;
+                try {
+                    current = queue.take();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                position = 0;
+            }
+            return true;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
 import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
 import cn.zbx1425.resourcepackupdater.io.FileProperty;
 import cn.zbx1425.resourcepackupdater.io.HashCache;
+import cn.zbx1425.resourcepackupdater.io.MerkleTree;
 import cn.zbx1425.resourcepackupdater.io.ProgressReceiver;
 import cn.zbx1425.resourcepackupdater.util.MismatchingVersionException;
 import cn.zbx1425.resourcepackupdater.util.MtrVersion;
@@ -27,6 +28,9 @@ public class RemoteMetadata {
 
     public String baseUrl;
     public boolean encrypt = false;
+    public byte[] treeRoot;
+    // Whether the server offers the bundle endpoint, which sends many small files in one response.
+    public boolean bundle = false;
     public List<String> dirs = new ArrayList<>();
     public HashMap<String, FileProperty> files = new HashMap<>();
 
@@ -43,6 +47,8 @@ public class RemoteMetadata {
             JsonObject metadataObj = ResourcePackUpdater.JSON_PARSER.parse(metaString).getAsJsonObject();
             assertMetadataVersion(metadataObj);
             if (metadataObj.has("encrypt")) encrypt = metadataObj.get("encrypt").getAsBoolean();
+            if (metadataObj.has("bundle")) bundle = metadataObj.get("bundle").getAsBoolean();
+            if (metadataObj.has("tree_root")) treeRoot = Hex.decodeHex(metadataObj.get("tree_root").getAsString().toCharArray());
             return Hex.decodeHex(metadataObj.get("sha1").getAsString().toCharArray());
         } else {
             return Hex.decodeHex(metaString.trim().toCharArray());
@@ -59,6 +65,7 @@ public class RemoteMetadata {
         int metadataVersion = 1;
         if (metadataObj.has("version")) metadataVersion = metadataObj.get("version").getAsInt();
         if (metadataObj.has("encrypt")) encrypt = metadataObj.get("encrypt").getAsBoolean();
+        if (metadataObj.has("bundle")) bundle = metadataObj.get("bundle").getAsBoolean();
 
         if (metadataVersion == 1) {
             for (var entry : metadataObj.get("dirs").getAsJsonObject().entrySet()) {
@@ -80,6 +87,47 @@ public class RemoteMetadata {
         }
     }
 
+    // Walks the remote tree from treeRoot, fetching the shard of a directory only where its hash differs
+    // from the local one; matching subtrees are taken from the local tree as they are. Returns the shard count.
+    public int fetchTree(MerkleTree localTree, ProgressReceiver cb) throws Exception {
+        dirs.clear();
+        files.clear();
+        dirs.add("");
+        return fetchSubtree("", treeRoot, localTree, cb);
+    }
+
+    private int fetchSubtree(String dirPath, byte[] subtreeHash, MerkleTree localTree, ProgressReceiver cb) throws Exception {
+        if (Arrays.equals(localTree.getHash(dirPath), subtreeHash)) {
+            localTree.collect(dirPath, dirs, files);
+            return 0;
+        }
+        String hashHex = Hex.encodeHexString(subtreeHash);
+        JsonObject shardObj = ResourcePackUpdater.JSON_PARSER.parse(
+                httpGetString(baseUrl + "/tree/" + hashHex + ".json", cb)
+        ).getAsJsonObject();
+        String prefix = dirPath.isEmpty() ? "" : dirPath + "/";
+        TreeMap<String, byte[]> dirHashes = new TreeMap<>();
+        TreeMap<String, byte[]> fileHashes = new TreeMap<>();
+        for (var entry : shardObj.get("dirs").getAsJsonObject().entrySet()) {
+            dirHashes.put(entry.getKey(), Hex.decodeHex(entry.getValue().getAsString().toCharArray()));
+        }
+        for (var entry : shardObj.get("files").getAsJsonObject().entrySet()) {
+            FileProperty fileProperty = new FileProperty(entry.getValue().getAsJsonObject());
+            fileHashes.put(entry.getKey(), fileProperty.hash);
+            files.put(prefix + entry.getKey(), fileProperty);
+        }
+        if (!Arrays.equals(MerkleTree.computeDirHash(dirHashes, fileHashes), subtreeHash)) {
+            throw new IOException("Metadata shard checksum mismatch: " + hashHex);
+        }
+
+        int shardsFetched = 1;
+        for (var entry : dirHashes.entrySet()) {
+            dirs.add(prefix + entry.getKey());
+            shardsFetched += fetchSubtree(prefix + entry.getKey(), entry.getValue(), localTree, cb);
+        }
+        return shardsFetched;
+    }
+
     private String httpGetString(String urlStr, ProgressReceiver cb) throws IOException {
         URL url = new URL(urlStr);
         int retryCount = 0;
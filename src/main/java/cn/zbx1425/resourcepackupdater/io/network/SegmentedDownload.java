@@ -0,0 +1,265 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.function.LongConsumer;
+
+// Fetches one file as several byte ranges over parallel connections, each written at its own offset
+// into a preallocated file. The first range doubles as a probe: if the server answers it with the whole
+// file instead, that response is simply used as the only segment. Nothing here checks the content;
+// the caller hashes the merged file.
+public class SegmentedDownload {
+
+    private static final int MAX_SEGMENT_RETRIES = 4;
+
+    private final URI requestUri;
+    private final long size;
+    private final Path file;
+    private final int segmentCount;
+    private final LongConsumer onProgress;
+
+    private FileChannel channel;
+    private String rangeValidator;
+    // Until the first response has shown whether ranges work, only the first segment is requested.
+    private volatile boolean probed = false;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Set<CompletableFuture<?>> requests = ConcurrentHashMap.newKeySet();
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    public SegmentedDownload(URI requestUri, long size, Path file, int segmentCount, LongConsumer onProgress) {
+        this.requestUri = requestUri;
+        this.size = size;
+        this.file = file;
+        this.segmentCount = Math.max(1, segmentCount);
+        this.onProgress = onProgress;
+    }
+
+    public CompletableFuture<Void> start() {
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.setLength(size);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            result.completeExceptionally(ex);
+            return result;
+        }
+        long segmentLength = (size + segmentCount - 1) / segmentCount;
+        for (long from = 0; from < size; from += segmentLength) {
+            segments.add(new Segment(from, Math.min(size, from + segmentLength) - 1));
+        }
+        if (segments.isEmpty()) {
+            finish(null);
+        } else {
+            fetch(segments.get(0));
+        }
+        return result;
+    }
+
+    public void cancel() {
+        finish(new IOException("Segmented download cancelled"));
+    }
+
+    private void fetch(Segment segment) {
+        if (result.isDone()) return;
+        boolean probe = !probed;
+        HttpRequest.Builder builder = DownloadTask.newRequestBuilder(requestUri)
+                .setHeader("Accept-Encoding", "identity")
+                .setHeader("Range", "bytes=" + segment.position + "-" + segment.end);
+        if (!probe && rangeValidator != null) builder.setHeader("If-Range", rangeValidator);
+        CompletableFuture<HttpResponse<Void>> request = ResourcePackUpdater.HTTP_CLIENT.sendAsync(builder.GET().build(),
+                responseInfo -> {
+            try {
+                acceptResponse(segment, probe, responseInfo.statusCode(), responseInfo.headers());
+            } catch (IOException ex) {
+                return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.discarding(), body -> {
+                    throw new SegmentException(ex, responseInfo.statusCode() < 400 || probe);
+                });
+            }
+            return new SegmentSubscriber(segment);
+        });
+        requests.add(request);
+        request.whenComplete((response, ex) -> {
+            requests.remove(request);
+            if (ex == null && segment.position <= segment.end) {
+                ex = new IOException("Range ended early at " + segment.position);
+            }
+            if (ex == null) {
+                onSegmentDone();
+                return;
+            }
+            for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+                if (cause instanceof SegmentException) {
+                    ex = cause;
+                    break;
+                }
+            }
+            if (ex instanceof SegmentException segmentEx && segmentEx.fatal) {
+                finish(segmentEx.getCause());
+            } else if (++segment.failures <= MAX_SEGMENT_RETRIES) {
+                fetch(segment);
+            } else {
+                finish(ex);
+            }
+        });
+    }
+
+    private void acceptResponse(Segment segment, boolean probe, int statusCode, HttpHeaders headers) throws IOException {
+        if (statusCode >= 400) throw new IOException("Server returned HTTP " + statusCode);
+        String contentEncoding = headers.firstValue("Content-Encoding").orElse("identity");
+        if (!contentEncoding.equalsIgnoreCase("identity")) throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        if (statusCode == 206) {
+            String contentRange = headers.firstValue("Content-Range").orElse("");
+            if (!contentRange.startsWith("bytes " + segment.position + "-") || !contentRange.endsWith("/" + size)) {
+                throw new IOException("Unexpected partial response: " + contentRange);
+            }
+            if (probe) {
+                String eTag = headers.firstValue("ETag").orElse(null);
+                rangeValidator = eTag != null && !eTag.startsWith("W/") ? eTag : headers.firstValue("Last-Modified").orElse(null);
+                probed = true;
+                for (int i = 1; i < segments.size(); i++) fetch(segments.get(i));
+            }
+        } else if (probe && segment.position == 0) {
+            // No range support, so this one response carries the whole file.
+            synchronized (this) {
+                segments.subList(1, segments.size()).clear();
+            }
+            segment.end = size - 1;
+            probed = true;
+        } else {
+            // A full response to If-Range means the file changed under the segments already written.
+            throw new IOException("Remote file changed during segmented download");
+        }
+    }
+
+    private synchronized void onSegmentDone() {
+        for (Segment segment : segments) {
+            if (segment.position <= segment.end) return;
+        }
+        finish(null);
+    }
+
+    private synchronized void finish(Throwable ex) {
+        if (result.isDone()) return;
+        if (ex != null) requests.forEach(request -> request.cancel(true));
+        try {
+            if (ex == null) channel.force(false);
+            channel.close();
+        } catch (IOException closeEx) {
+            if (ex == null) ex = closeEx;
+        }
+        if (ex == null) {
+            result.complete(null);
+        } else {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    private static class Segment {
+
+        public long position;
+        public long end;
+        public int failures = 0;
+
+        public Segment(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+    }
+
+    // Carries whether another attempt at the segment could help, which is not the case for bad responses.
+    private static class SegmentException extends RuntimeException {
+
+        public final boolean fatal;
+
+        public SegmentException(IOException cause, boolean fatal) {
+            super(cause);
+            this.fatal = fatal;
+        }
+    }
+
+    private class SegmentSubscriber implements HttpResponse.BodySubscriber<Void> {
+
+        private final Segment segment;
+        private final CompletableFuture<Void> body = new CompletableFuture<>();
+        private volatile Flow.Subscription subscription;
+        private final IdleWatchdog watchdog;
+
+        public SegmentSubscriber(Segment segment) {
+            this.segment = segment;
+            this.watchdog = new IdleWatchdog(() -> {
+                Flow.Subscription subscription = this.subscription;
+                if (subscription != null) subscription.cancel();
+                fail(IdleWatchdog.newTimeoutException());
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public synchronized void onNext(List<ByteBuffer> items) {
+            if (body.isDone()) return;
+            watchdog.touch();
+            try {
+                long newBytes = 0;
+                for (ByteBuffer item : items) {
+                    if (segment.position + item.remaining() > segment.end + 1) {
+                        throw new IOException("Range overran its end at " + segment.end);
+                    }
+                    while (item.hasRemaining()) {
+                        int written = channel.write(item, segment.position);
+                        segment.position += written;
+                        newBytes += written;
+                    }
+                }
+                onProgress.accept(newBytes);
+                subscription.request(1);
+            } catch (IOException ex) {
+                subscription.cancel();
+                fail(ex);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            fail(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            watchdog.stop();
+            body.complete(null);
+        }
+
+        // Also reached from the watchdog thread, hence kept in step with onNext.
+        private synchronized void fail(Throwable throwable) {
+            watchdog.stop();
+            body.completeExceptionally(throwable);
+        }
+    }
+}
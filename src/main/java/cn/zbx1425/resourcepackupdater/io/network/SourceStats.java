@@ -0,0 +1,154 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import cn.zbx1425.resourcepackupdater.Config;
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// How well each source has performed from here, kept across launches so a source can be picked without
+// waiting on the network. Latency comes from timed probes, throughput from the downloads of finished syncs.
+// Sources are ranked by how long they would be expected to take for a REFERENCE_BYTES download.
+public class SourceStats {
+
+    private static final long REFERENCE_BYTES = 8 * 1024 * 1024;
+    // Smaller downloads say more about latency than about bandwidth.
+    private static final long MIN_MEASURED_BYTES = 1024 * 1024;
+    private static final double DEFAULT_BYTES_PER_SECOND = 1024 * 1024;
+    private static final double SMOOTH_FACTOR = 0.3;
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(5);
+
+    private Path file;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public synchronized void load(Path file) {
+        this.file = file;
+        entries.clear();
+        if (!Files.isRegularFile(file)) return;
+        try {
+            JsonObject obj = ResourcePackUpdater.JSON_PARSER.parse(Files.readString(file)).getAsJsonObject();
+            for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+                entries.put(entry.getKey(), new Entry(entry.getValue().getAsJsonObject()));
+            }
+        } catch (Exception ex) {
+            ResourcePackUpdater.LOGGER.warn("Cannot read source statistics, starting over", ex);
+            entries.clear();
+        }
+    }
+
+    public synchronized void save() {
+        if (file == null) return;
+        JsonObject obj = new JsonObject();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) obj.add(entry.getKey(), entry.getValue().toJson());
+        try {
+            Files.writeString(file, new GsonBuilder().setPrettyPrinting().create().toJson(obj));
+        } catch (IOException ex) {
+            ResourcePackUpdater.LOGGER.warn("Cannot save source statistics", ex);
+        }
+    }
+
+    public synchronized Entry get(String baseUrl) {
+        return entries.get(baseUrl);
+    }
+
+    public synchronized boolean hasAny(List<Config.SourceProperty> sources) {
+        return sources.stream().anyMatch(source -> entries.containsKey(source.baseUrl));
+    }
+
+    public synchronized void onProbe(String baseUrl, long latencyMillis) {
+        Entry entry = entries.computeIfAbsent(baseUrl, k -> new Entry());
+        if (latencyMillis < 0) {
+            entry.failures++;
+        } else {
+            entry.failures = 0;
+            entry.latencyMillis = latencyMillis;
+        }
+    }
+
+    public synchronized void onDownload(String baseUrl, long bytes, long elapsedMillis) {
+        if (bytes < MIN_MEASURED_BYTES || elapsedMillis <= 0) return;
+        Entry entry = entries.computeIfAbsent(baseUrl, k -> new Entry());
+        double bytesPerSecond = bytes * 1000.0 / elapsedMillis;
+        entry.bytesPerSecond = entry.bytesPerSecond > 0
+                ? entry.bytesPerSecond * (1 - SMOOTH_FACTOR) + bytesPerSecond * SMOOTH_FACTOR : bytesPerSecond;
+    }
+
+    // Unprobed and unreachable sources go last, in their configured order.
+    public synchronized double getExpectedMillis(String baseUrl) {
+        Entry entry = entries.get(baseUrl);
+        if (entry == null || entry.failures > 0 || entry.latencyMillis < 0) return Double.MAX_VALUE;
+        double bytesPerSecond = entry.bytesPerSecond > 0 ? entry.bytesPerSecond : DEFAULT_BYTES_PER_SECOND;
+        return entry.latencyMillis + REFERENCE_BYTES * 1000.0 / bytesPerSecond;
+    }
+
+    public List<Config.SourceProperty> rank(List<Config.SourceProperty> sources) {
+        List<Config.SourceProperty> ranked = new ArrayList<>(sources);
+        ranked.sort(Comparator.comparingDouble(source -> getExpectedMillis(source.baseUrl)));
+        return ranked;
+    }
+
+    // Times a HEAD request to every source at once; the future completes once all of them have answered or failed.
+    public CompletableFuture<Void> probe(List<Config.SourceProperty> sources) {
+        List<CompletableFuture<?>> probes = new ArrayList<>();
+        for (Config.SourceProperty source : sources) {
+            if (source.baseUrl.isEmpty()) continue;
+            String probePath = source.hasArchive ? "" : source.hasDirHash ? "/metadata.sha1" : "/metadata.json";
+            HttpRequest request;
+            try {
+                request = DownloadTask.newRequestBuilder(URI.create(source.baseUrl + probePath))
+                        .timeout(PROBE_TIMEOUT)
+                        .method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+            } catch (IllegalArgumentException ex) {
+                onProbe(source.baseUrl, -1);
+                continue;
+            }
+            long startTime = System.currentTimeMillis();
+            probes.add(ResourcePackUpdater.HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .handle((response, ex) -> {
+                        boolean success = ex == null && response.statusCode() < 400;
+                        onProbe(source.baseUrl, success ? System.currentTimeMillis() - startTime : -1);
+                        return null;
+                    }));
+        }
+        return CompletableFuture.allOf(probes.toArray(new CompletableFuture[0]));
+    }
+
+    public static class Entry {
+
+        public long latencyMillis = -1;
+        public double bytesPerSecond = 0;
+        public int failures = 0;
+
+        public Entry() {
+
+        }
+
+        public Entry(JsonObject obj) {
+            if (obj.has("latency")) latencyMillis = obj.get("latency").getAsLong();
+            if (obj.has("throughput")) bytesPerSecond = obj.get("throughput").getAsDouble();
+            if (obj.has("failures")) failures = obj.get("failures").getAsInt();
+        }
+
+        public JsonObject toJson() {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("latency", latencyMillis);
+            obj.addProperty("throughput", bytesPerSecond);
+            obj.addProperty("failures", failures);
+            return obj;
+        }
+    }
+}
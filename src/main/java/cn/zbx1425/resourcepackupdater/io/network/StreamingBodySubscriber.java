@@ -0,0 +1,112 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+// Writes response buffers into the target as the HttpClient hands them over, so a transfer
+// occupies no thread of its own while it waits for data.
+public class StreamingBodySubscriber implements HttpResponse.BodySubscriber<Void> {
+
+    private final DownloadTask task;
+    private final OutputStream target;
+    private final OutputStream output;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    private final IdleWatchdog watchdog;
+
+    private volatile Flow.Subscription subscription;
+    private byte[] scratch;
+    // Counted from where a resumed transfer continues, matching the progress already reported for it.
+    private long receivedBytes;
+
+    // output is target itself, or a push-style decoder in front of it.
+    public StreamingBodySubscriber(DownloadTask task, OutputStream target, OutputStream output, long offset) {
+        this.task = task;
+        this.target = target;
+        this.output = output;
+        this.receivedBytes = offset;
+        this.watchdog = new IdleWatchdog(() -> {
+            Flow.Subscription subscription = this.subscription;
+            if (subscription != null) subscription.cancel();
+            fail(IdleWatchdog.newTimeoutException());
+        });
+    }
+
+    @Override
+    public CompletionStage<Void> getBody() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    @Override
+    public synchronized void onNext(List<ByteBuffer> items) {
+        if (result.isDone()) return;
+        watchdog.touch();
+        try {
+            long newBytes = 0;
+            for (ByteBuffer item : items) {
+                newBytes += item.remaining();
+                write(item);
+            }
+            receivedBytes += newBytes;
+            task.onAsyncProgress(newBytes);
+            subscription.request(1);
+        } catch (Exception ex) {
+            subscription.cancel();
+            fail(ex);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        if (result.isDone()) return;
+        watchdog.stop();
+        try {
+            output.close();
+            task.onAsyncFinished(receivedBytes);
+            result.complete(null);
+        } catch (Exception ex) {
+            fail(ex);
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        if (output instanceof PackOutputStream packOutput) {
+            packOutput.write(buffer);
+        } else if (buffer.hasArray()) {
+            output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            if (scratch == null) scratch = new byte[16 * 1024];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(scratch.length, buffer.remaining());
+                buffer.get(scratch, 0, length);
+                output.write(scratch, 0, length);
+            }
+        }
+    }
+
+    // Also reached from the watchdog thread, hence kept in step with onNext.
+    private synchronized void fail(Throwable throwable) {
+        if (result.isDone()) return;
+        watchdog.stop();
+        if (output instanceof PullDecodingOutputStream pullOutput) pullOutput.abort();
+        task.onAsyncFailed(receivedBytes, target);
+        result.completeExceptionally(throwable);
+    }
+}
@@ -0,0 +1,168 @@
+package cn.zbx1425.resourcepackupdater.drm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkedEncryptionTest {
+
+    private static final int CHUNK = ChunkedEncryption.DEFAULT_CHUNK_SIZE;
+    // Where plainLength sits in the header: magic, versionMajor, versionMinor, key, nonce, chunkSize.
+    private static final int PLAIN_LENGTH_OFFSET = 8 + 4 + 4 + 32 + 12 + 4;
+
+    @TempDir
+    Path dir;
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    private static byte[] readStream(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file); InputStream input = AssetEncryption.wrapInputStream(fis)) {
+            return input.readAllBytes();
+        }
+    }
+
+    private static ChunkedEncryption.Header readHeader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return ChunkedEncryption.Header.read(channel);
+        }
+    }
+
+    private static void readChunk(File file, ChunkedEncryption.Header header, long chunkIndex, byte[] target) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(target);
+            while (buffer.hasRemaining()) channel.read(buffer, header.getChunkOffset(chunkIndex) + buffer.position());
+        }
+    }
+
+    private static void writeAt(File file, long position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    @Test
+    public void roundTripsAtChunkBoundaries() throws IOException {
+        // The empty file, either side of one chunk, and either side of one parallel batch of 16 chunks.
+        int[] lengths = { 0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 16 * CHUNK, 16 * CHUNK + 1, 40 * CHUNK + 12345 };
+        Random random = new Random(1);
+        for (int length : lengths) {
+            byte[] content = content(length);
+            File file = dir.resolve("file" + length).toFile();
+            try (OutputStream output = AssetEncryption.openEncryptedOutputStream(file)) {
+                // Written in ragged pieces, so chunks are assembled from several writes.
+                int offset = 0;
+                while (offset < length) {
+                    int n = Math.min(length - offset, 1 + random.nextInt(3 * CHUNK));
+                    output.write(content, offset, n);
+                    offset += n;
+                }
+            }
+
+            ChunkedEncryption.Header header = readHeader(file);
+            assertEquals(length, header.plainLength);
+            assertEquals(Math.max(1, (length + CHUNK - 1) / CHUNK), header.getChunkCount());
+            assertEquals(header.getFileLength(), file.length());
+            assertArrayEquals(content, readStream(file), "length " + length);
+
+            try (ChunkedEncryption.RandomAccessReader reader = new ChunkedEncryption.RandomAccessReader(file)) {
+                byte[] all = new byte[length];
+                int read = 0;
+                while (read < length) read += reader.read(read, all, read, length - read);
+                assertArrayEquals(content, all, "length " + length);
+                assertEquals(-1, reader.read(length, new byte[1], 0, 1));
+                // Ranges across chunk boundaries, read out of order.
+                for (int i = 0; i < 50 && length > 0; i++) {
+                    int position = random.nextInt(length);
+                    int n = Math.min(length - position, 1 + random.nextInt(2 * CHUNK));
+                    byte[] range = new byte[n];
+                    int rangeRead = 0;
+                    while (rangeRead < n) rangeRead += reader.read(position + rangeRead, range, rangeRead, n - rangeRead);
+                    for (int j = 0; j < n; j++) assertEquals(content[position + j], range[j]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTruncation() throws IOException {
+        for (int length : new int[] { 0, CHUNK, CHUNK + 1, 3 * CHUNK }) {
+            File file = dir.resolve("truncated" + length).toFile();
+            AssetEncryption.writeEncrypted(content(length), file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(file.length() - 1);
+            }
+            assertThrows(IOException.class, () -> readStream(file), "length " + length);
+        }
+    }
+
+    @Test
+    public void rejectsCutAtChunkBoundary() throws IOException {
+        // The last chunk dropped and plainLength rewritten to match: the new last chunk was not sealed as the last.
+        for (int length : new int[] { CHUNK + 1, 2 * CHUNK, 3 * CHUNK }) {
+            File file = dir.resolve("cut" + length).toFile();
+            AssetEncryption.writeEncrypted(content(length), file);
+            ChunkedEncryption.Header header = readHeader(file);
+            long keptChunks = header.getChunkCount() - 1;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(header.getChunkOffset(keptChunks));
+            }
+            writeAt(file, PLAIN_LENGTH_OFFSET, ByteBuffer.allocate(8).putLong(keptChunks * CHUNK).array());
+            assertEquals(keptChunks * CHUNK, readHeader(file).plainLength);
+
+            assertThrows(IOException.class, () -> readStream(file), "length " + length);
+            try (ChunkedEncryption.RandomAccessReader reader = new ChunkedEncryption.RandomAccessReader(file)) {
+                assertThrows(IOException.class, () -> reader.read((keptChunks - 1) * CHUNK, new byte[1], 0, 1));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsReorderedChunks() throws IOException {
+        File file = dir.resolve("reordered").toFile();
+        AssetEncryption.writeEncrypted(content(3 * CHUNK), file);
+        ChunkedEncryption.Header header = readHeader(file);
+        byte[] first = new byte[CHUNK + 16];
+        byte[] second = new byte[CHUNK + 16];
+        readChunk(file, header, 0, first);
+        readChunk(file, header, 1, second);
+        writeAt(file, header.getChunkOffset(0), second);
+        writeAt(file, header.getChunkOffset(1), first);
+
+        assertThrows(IOException.class, () -> readStream(file));
+        try (ChunkedEncryption.RandomAccessReader reader = new ChunkedEncryption.RandomAccessReader(file)) {
+            assertThrows(IOException.class, () -> reader.read(0, new byte[1], 0, 1));
+            assertThrows(IOException.class, () -> reader.read(CHUNK, new byte[1], 0, 1));
+            // The chunk that stayed in place is still readable on its own.
+            assertEquals(1, reader.read(2L * CHUNK, new byte[1], 0, 1));
+        }
+    }
+
+    @Test
+    public void rejectsFlippedByte() throws IOException {
+        File file = dir.resolve("flipped").toFile();
+        AssetEncryption.writeEncrypted(content(2 * CHUNK), file);
+        ChunkedEncryption.Header header = readHeader(file);
+        byte[] chunk = new byte[CHUNK + 16];
+        readChunk(file, header, 1, chunk);
+        chunk[100] ^= 1;
+        writeAt(file, header.getChunkOffset(1), chunk);
+        assertThrows(IOException.class, () -> readStream(file));
+    }
+}
@@ -0,0 +1,159 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+// Wall time of applyArchive writing a generated pack into an empty folder, against the single-threaded
+// ZipInputStream extraction it replaced, and of applyArchive going over the same folder again with nothing
+// changed. Best of ROUNDS after one warm-up round. Pass a file count to change the pack's size.
+public class ArchiveExtractBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        Path workDir = Files.createTempDirectory("rpu-archive-benchmark");
+        try {
+            Path zipPath = workDir.resolve("pack.zip");
+            long plainBytes = writePack(zipPath, fileCount, new Random(1));
+            System.out.printf("%d files, %.1f MiB inflated, %.1f MiB zipped, %d cores%n", fileCount,
+                    plainBytes / 1048576.0, Files.size(zipPath) / 1048576.0, Runtime.getRuntime().availableProcessors());
+
+            Path basePath = workDir.resolve("pack");
+            Path statePath = workDir.resolve("state.json");
+            Dispatcher dispatcher = new Dispatcher();
+            ProgressReceiver cb = new NullProgressReceiver();
+
+            long streamedNanos = time(() -> {
+                FileUtils.deleteDirectory(basePath.toFile());
+                long start = System.nanoTime();
+                extractStreamed(zipPath, basePath);
+                return System.nanoTime() - start;
+            });
+            AtomicReference<Map<String, Dispatcher.ArchiveFileState>> states = new AtomicReference<>();
+            long parallelNanos = time(() -> {
+                FileUtils.deleteDirectory(basePath.toFile());
+                long start = System.nanoTime();
+                states.set(dispatcher.applyArchive(zipPath, basePath, statePath, Map.of(), cb));
+                return System.nanoTime() - start;
+            });
+            long unchangedNanos = time(() -> {
+                long start = System.nanoTime();
+                dispatcher.applyArchive(zipPath, basePath, statePath, states.get(), cb);
+                return System.nanoTime() - start;
+            });
+            System.out.printf("%-32s %10.1f ms%n", "ZipInputStream, one thread", streamedNanos / 1e6);
+            System.out.printf("%-32s %10.1f ms  (%.2fx)%n", "applyArchive, empty folder", parallelNanos / 1e6,
+                    streamedNanos / (double) parallelNanos);
+            System.out.printf("%-32s %10.1f ms%n", "applyArchive, nothing changed", unchangedNanos / 1e6);
+        } finally {
+            FileUtils.deleteDirectory(workDir.toFile());
+        }
+    }
+
+    // Mostly small textures, which are already compressed, and models that deflate well, with a few large sounds.
+    private static long writePack(Path zipPath, int fileCount, Random random) throws IOException {
+        long plainBytes = 0;
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(zipPath)))) {
+            zos.putNextEntry(new ZipEntry("pack.mcmeta"));
+            zos.write("{\"pack\":{\"pack_format\":15,\"description\":\"\"}}".getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < fileCount; i++) {
+                byte[] content;
+                String path;
+                if (i % 200 == 0) {
+                    content = new byte[1048576 + random.nextInt(4 * 1048576)];
+                    random.nextBytes(content);
+                    path = "assets/mtr/sounds/" + i + ".ogg";
+                } else if (i % 3 == 0) {
+                    StringBuilder model = new StringBuilder("{\"elements\":[");
+                    int elementCount = 10 + random.nextInt(1000);
+                    for (int j = 0; j < elementCount; j++) {
+                        model.append("{\"from\":[").append(random.nextInt(16)).append(",0,").append(random.nextInt(16))
+                                .append("],\"to\":[16,").append(random.nextInt(16)).append(",16]},");
+                    }
+                    content = model.append("{}]}").toString().getBytes(StandardCharsets.UTF_8);
+                    path = "assets/mtr/models/block/" + (i % 40) + "/" + i + ".json";
+                } else {
+                    content = new byte[1024 + random.nextInt(64 * 1024)];
+                    random.nextBytes(content);
+                    path = "assets/mtr/textures/block/" + (i % 40) + "/" + i + ".png";
+                }
+                zos.putNextEntry(new ZipEntry(path));
+                zos.write(content);
+                plainBytes += content.length;
+            }
+        }
+        return plainBytes;
+    }
+
+    private static void extractStreamed(Path zipPath, Path basePath) throws IOException {
+        byte[] buffer = new byte[65536];
+        try (ZipInputStream zis = new ZipInputStream(Files.newInputStream(zipPath))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                Path target = basePath.resolve(entry.getName());
+                if (entry.isDirectory()) {
+                    Files.createDirectories(target);
+                    continue;
+                }
+                Files.createDirectories(target.getParent());
+                try (OutputStream output = Files.newOutputStream(target)) {
+                    int n;
+                    while ((n = zis.read(buffer)) > 0) output.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+
+    private static long time(Round round) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i <= ROUNDS; i++) {
+            long nanos = round.run();
+            if (i > 0) best = Math.min(best, nanos);
+        }
+        return best;
+    }
+
+    private interface Round {
+        long run() throws Exception;
+    }
+
+    private static class NullProgressReceiver implements ProgressReceiver {
+
+        @Override
+        public void printLog(String line) {
+        }
+
+        @Override
+        public void printLogOutsidePolling(String line) {
+        }
+
+        @Override
+        public void amendLastLog(String postfix) {
+        }
+
+        @Override
+        public void setProgress(float primary, float secondary) {
+        }
+
+        @Override
+        public void setInfo(String aux1, String aux2) {
+        }
+
+        @Override
+        public void setException(Exception exception) {
+        }
+    }
+}
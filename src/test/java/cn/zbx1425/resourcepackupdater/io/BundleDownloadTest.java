@@ -0,0 +1,263 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+import cn.zbx1425.resourcepackupdater.io.network.BundleOutputStream;
+import cn.zbx1425.resourcepackupdater.io.network.DownloadDispatcher;
+import cn.zbx1425.resourcepackupdater.io.network.RemoteMetadata;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BundleDownloadTest {
+
+    // Sent in the first response that carries it with one byte flipped, so its hash does not match.
+    private static final String CORRUPT_FILE = "assets/mtr/lang/zh_cn.json";
+    // Never sent in a bundle, so they have to come from /dist/ one by one.
+    private static final Set<String> LEFT_OUT_FILES = Set.of("assets/mtr/sounds.json", "assets/mtr/textures/block/x.png");
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private final Map<String, byte[]> files = new LinkedHashMap<>();
+    private final List<List<String>> bundleRequests = new CopyOnWriteArrayList<>();
+    private final List<List<String>> bundleResponses = new CopyOnWriteArrayList<>();
+    private final List<String> singleRequests = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        Random random = new Random(1);
+        for (int i = 0; i < 150; i++) {
+            byte[] content = new byte[random.nextInt(3000)];
+            random.nextBytes(content);
+            files.put("assets/mtr/textures/block/" + i + ".png", content);
+        }
+        for (String path : Stream.concat(Stream.of(CORRUPT_FILE, "assets/mtr/empty.txt"), LEFT_OUT_FILES.stream()).toList()) {
+            byte[] content = new byte[path.endsWith(".txt") ? 0 : 5000];
+            random.nextBytes(content);
+            files.put(path, content);
+        }
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.createContext("/bundle", exchange -> {
+            List<String> paths = Arrays.asList(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).split("\n"));
+            bundleRequests.add(paths);
+            List<String> sent = new ArrayList<>();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream bodyStream = new DataOutputStream(body);
+            for (String path : paths) {
+                if (LEFT_OUT_FILES.contains(path)) continue;
+                byte[] content = files.get(path).clone();
+                if (path.equals(CORRUPT_FILE) && bundleResponses.stream().noneMatch(response -> response.contains(CORRUPT_FILE))) {
+                    content[content.length / 2] ^= 1;
+                }
+                byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+                bodyStream.writeInt(pathBytes.length);
+                bodyStream.write(pathBytes);
+                bodyStream.writeLong(content.length);
+                bodyStream.write(content);
+                sent.add(path);
+            }
+            bodyStream.writeInt(0);
+            bundleResponses.add(sent);
+
+            // Chunked, in pieces of random size, so the framing arrives split at arbitrary points.
+            exchange.sendResponseHeaders(200, 0);
+            byte[] bytes = body.toByteArray();
+            Random pieces = new Random(bytes.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                for (int offset = 0; offset < bytes.length; ) {
+                    int n = Math.min(bytes.length - offset, 1 + pieces.nextInt(pieces.nextBoolean() ? 16 : 8192));
+                    output.write(bytes, offset, n);
+                    output.flush();
+                    offset += n;
+                }
+            }
+        });
+        server.createContext("/dist/", exchange -> {
+            String path = exchange.getRequestURI().getPath().substring("/dist/".length());
+            singleRequests.add(path);
+            byte[] content = files.get(path);
+            exchange.sendResponseHeaders(200, content.length == 0 ? -1 : content.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(content);
+            }
+        });
+        server.start();
+
+        ResourcePackUpdater.CONFIG.minDownloadConcurrency.value = 2;
+        ResourcePackUpdater.CONFIG.maxDownloadConcurrency.value = 8;
+        ResourcePackUpdater.CONFIG.downloadSegments.value = 1;
+        ResourcePackUpdater.CONFIG.segmentedDownloadMiB.value = 32;
+        ResourcePackUpdater.CONFIG.deepVerifyEncrypted.value = false;
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private RemoteMetadata remoteMetadata() {
+        RemoteMetadata remoteMetadata = new RemoteMetadata("http://127.0.0.1:" + server.getAddress().getPort());
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            JsonObject property = new JsonObject();
+            property.addProperty("sha1", DigestUtils.sha1Hex(entry.getValue()));
+            property.addProperty("size", entry.getValue().length);
+            remoteMetadata.files.put(entry.getKey(), new FileProperty(property));
+        }
+        return remoteMetadata;
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { true, false })
+    public void downloadsBundleWithRetryAndFallback(boolean asyncDownloads) throws Exception {
+        ResourcePackUpdater.CONFIG.asyncDownloads.value = asyncDownloads;
+        for (String path : files.keySet()) Files.createDirectories(dir.resolve(path).getParent());
+        LocalMetadata localMetadata = new LocalMetadata(dir.toString());
+        localMetadata.loadHashCache();
+        Dispatcher dispatcher = new Dispatcher(remoteMetadata(), localMetadata);
+
+        DownloadDispatcher downloadDispatcher = new DownloadDispatcher(new NullProgressReceiver());
+        dispatcher.dispatchBundle(downloadDispatcher, dir.toString(), new ArrayList<>(files.keySet()));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!downloadDispatcher.tasksFinished()) {
+            downloadDispatcher.updateSummary();
+            assertTrue(System.currentTimeMillis() < deadline, "Downloads did not finish");
+            Thread.sleep(10);
+        }
+        downloadDispatcher.updateSummary();
+        downloadDispatcher.close();
+
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            assertArrayEquals(DigestUtils.sha1(entry.getValue()), HashCache.calculateDigest(dir.resolve(entry.getKey()).toFile()), entry.getKey());
+        }
+        try (Stream<Path> walk = Files.walk(dir)) {
+            assertEquals(List.of(), walk.filter(path -> path.toString().endsWith(".rpu-tmp")).toList());
+        }
+
+        // Counted once each: the left-out files move from the bundle's share to their own tasks.
+        assertEquals(files.values().stream().mapToLong(content -> content.length).sum(), downloadDispatcher.totalBytes.get());
+
+        // The corrupt file fails the first attempt; the retry only asks for what that one did not write.
+        assertEquals(2, bundleRequests.size());
+        assertEquals(files.keySet(), new HashSet<>(bundleRequests.get(0)));
+        List<String> firstResponse = bundleResponses.get(0);
+        Set<String> expectedRetry = new HashSet<>(files.keySet());
+        firstResponse.subList(0, firstResponse.indexOf(CORRUPT_FILE)).forEach(expectedRetry::remove);
+        assertEquals(expectedRetry, new HashSet<>(bundleRequests.get(1)));
+
+        assertEquals(LEFT_OUT_FILES, new HashSet<>(singleRequests));
+        assertEquals(LEFT_OUT_FILES.size(), singleRequests.size());
+    }
+
+    @Test
+    public void parsesFramingSplitAtEveryPosition() throws IOException {
+        Map<String, byte[]> bundle = new LinkedHashMap<>();
+        bundle.put("a", new byte[] { 1, 2, 3 });
+        bundle.put("empty", new byte[0]);
+        bundle.put("dir/名前.json", "{}".getBytes(StandardCharsets.UTF_8));
+        bundle.put("not-asked-for", new byte[] { 9 });
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyStream = new DataOutputStream(body);
+        for (Map.Entry<String, byte[]> entry : bundle.entrySet()) {
+            byte[] pathBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            bodyStream.writeInt(pathBytes.length);
+            bodyStream.write(pathBytes);
+            bodyStream.writeLong(entry.getValue().length);
+            bodyStream.write(entry.getValue());
+        }
+        bodyStream.writeInt(0);
+        byte[] bytes = body.toByteArray();
+
+        // Every pair of cut points, so each field is split in every possible way.
+        for (int first = 0; first <= bytes.length; first++) {
+            for (int second = first; second <= bytes.length; second++) {
+                Map<String, ByteArrayOutputStream> written = new HashMap<>();
+                Map<String, Supplier<OutputStream>> remaining = new ConcurrentHashMap<>();
+                for (String path : List.of("a", "empty", "dir/名前.json", "missing")) {
+                    remaining.put(path, () -> written.computeIfAbsent(path, key -> new ByteArrayOutputStream()));
+                }
+                List<String> missing = new ArrayList<>();
+                try (BundleOutputStream output = new BundleOutputStream(remaining, missing::addAll)) {
+                    output.write(bytes, 0, first);
+                    output.write(bytes, first, second - first);
+                    output.write(bytes, second, bytes.length - second);
+                }
+                assertArrayEquals(bundle.get("a"), written.get("a").toByteArray());
+                assertArrayEquals(new byte[0], written.get("empty").toByteArray());
+                assertArrayEquals(bundle.get("dir/名前.json"), written.get("dir/名前.json").toByteArray());
+                assertFalse(written.containsKey("not-asked-for"));
+                assertEquals(List.of("missing"), missing);
+                assertEquals(Set.of("missing"), remaining.keySet());
+            }
+        }
+
+        // Cut off anywhere before the terminator, the bundle is incomplete and nothing is reported missing.
+        for (int length = 0; length < bytes.length; length++) {
+            List<String> missing = new ArrayList<>();
+            BundleOutputStream output = new BundleOutputStream(new ConcurrentHashMap<>(Map.of("a", ByteArrayOutputStream::new)), missing::addAll);
+            output.write(bytes, 0, length);
+            assertThrows(IOException.class, output::close);
+            assertEquals(List.of(), missing);
+        }
+    }
+
+    private static class NullProgressReceiver implements ProgressReceiver {
+
+        @Override
+        public void printLog(String line) {
+        }
+
+        @Override
+        public void printLogOutsidePolling(String line) {
+        }
+
+        @Override
+        public void amendLastLog(String postfix) {
+        }
+
+        @Override
+        public void setProgress(float primary, float secondary) {
+        }
+
+        @Override
+        public void setInfo(String aux1, String aux2) {
+        }
+
+        @Override
+        public void setException(Exception exception) {
+        }
+    }
+}
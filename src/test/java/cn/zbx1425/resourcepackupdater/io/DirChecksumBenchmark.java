@@ -0,0 +1,68 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Time and allocation of getDirChecksum against the netty ByteBuf implementation it replaced, over generated trees.
+// Both start from unsorted keys, as they would on every sync. Best of ROUNDS after as many warm-up rounds.
+public class DirChecksumBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int[] FILE_COUNTS = { 10_000, 100_000, 500_000 };
+
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        // Both compiled before the first measurement, which would otherwise favour whichever runs second.
+        TreeSet<String> warmUpDirs = new TreeSet<>();
+        TreeMap<String, byte[]> warmUpFiles = new TreeMap<>();
+        LocalMetadata warmUp = LocalMetadataTest.generateTree(new Random(0), 10_000, false, warmUpDirs, warmUpFiles);
+        for (int i = 0; i < 40; i++) {
+            LocalMetadataTest.nettyDirChecksum(new TreeSet<>(warmUpDirs), new TreeMap<>(warmUpFiles));
+            warmUp.getDirChecksum();
+        }
+        System.out.printf("%10s %12s %12s %14s %14s%n", "files", "netty ms", "digest ms", "netty alloc", "digest alloc");
+        for (int fileCount : FILE_COUNTS) {
+            TreeSet<String> dirs = new TreeSet<>();
+            TreeMap<String, byte[]> files = new TreeMap<>();
+            LocalMetadata metadata = LocalMetadataTest.generateTree(new Random(fileCount), fileCount, false, dirs, files);
+            List<String> unsortedDirs = new ArrayList<>(dirs);
+            Collections.shuffle(unsortedDirs);
+            Map<String, byte[]> unsortedFiles = new HashMap<>(files);
+            Checksum nettyChecksum = () -> LocalMetadataTest.nettyDirChecksum(new TreeSet<>(unsortedDirs), new TreeMap<>(unsortedFiles));
+            if (!Arrays.equals(nettyChecksum.compute(), metadata.getDirChecksum())) throw new IllegalStateException("Checksums differ");
+
+            long[] nettyResult = time(threads, nettyChecksum);
+            long[] digestResult = time(threads, metadata::getDirChecksum);
+            System.out.printf("%10d %12.1f %12.1f %13.1fM %13.1fM%n", fileCount, nettyResult[0] / 1e6, digestResult[0] / 1e6,
+                    nettyResult[1] / 1048576.0, digestResult[1] / 1048576.0);
+        }
+    }
+
+    private static long[] time(com.sun.management.ThreadMXBean threads, Checksum checksum) throws Exception {
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS * 2; round++) {
+            long startBytes = threads.getCurrentThreadAllocatedBytes();
+            long startTime = System.nanoTime();
+            checksum.compute();
+            long nanos = System.nanoTime() - startTime;
+            long bytes = threads.getCurrentThreadAllocatedBytes() - startBytes;
+            if (round >= ROUNDS) {
+                bestNanos = Math.min(bestNanos, nanos);
+                bestBytes = Math.min(bestBytes, bytes);
+            }
+        }
+        return new long[] { bestNanos, bestBytes };
+    }
+
+    private interface Checksum {
+        byte[] compute() throws Exception;
+    }
+}
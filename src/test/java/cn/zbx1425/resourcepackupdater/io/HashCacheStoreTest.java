@@ -0,0 +1,182 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashCacheStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private Path logFile() {
+        return dir.resolve("hashcache.bin");
+    }
+
+    private Path indexFile() {
+        return dir.resolve("hashcache.idx");
+    }
+
+    private static byte[] hash(int seed) {
+        byte[] hash = new byte[PathHashStore.HASH_LENGTH];
+        for (int i = 0; i < hash.length; i++) hash[i] = (byte) (seed * 31 + i);
+        return hash;
+    }
+
+    private static void assertEntry(HashCacheStore store, String key, int seed, long mTime) throws IOException {
+        FileProperty value = store.get(key);
+        assertNotNull(value, key);
+        assertArrayEquals(hash(seed), value.hash, key);
+        assertEquals(mTime, value.mTime, key);
+    }
+
+    @Test
+    public void reopensFromIndexAndFromLog() throws IOException {
+        try (HashCacheStore store = HashCacheStore.open(logFile(), indexFile())) {
+            // Enough keys to grow the index past its first capacity.
+            for (int i = 0; i < 3000; i++) store.put("assets/mtr/" + i + ".json", new FileProperty(hash(i), i));
+            store.put("assets/mtr/7.json", new FileProperty(hash(-7), 70));
+            assertEquals(3000, store.size());
+            assertEquals(3001, store.recordCount());
+        }
+        try (HashCacheStore store = HashCacheStore.open(logFile(), indexFile())) {
+            assertEquals(3000, store.size());
+            assertEntry(store, "assets/mtr/7.json", -7, 70);
+            assertEntry(store, "assets/mtr/2999.json", 2999, 2999);
+            assertNull(store.get("assets/mtr/3000.json"));
+        }
+        Files.delete(indexFile());
+        try (HashCacheStore store = HashCacheStore.open(logFile(), indexFile())) {
+            assertEquals(3000, store.size());
+            assertEquals(3001, store.recordCount());
+            assertEntry(store, "assets/mtr/7.json", -7, 70);
+            assertEntry(store, "assets/mtr/0.json", 0, 0);
+        }
+    }
+
+    @Test
+    public void dropsRecordTornMidWrite() throws IOException {
+        try (HashCacheStore store = HashCacheStore.open(logFile(), indexFile())) {
+            for (int i = 0; i < 10; i++) store.put("file" + i, new FileProperty(hash(i), i));
+        }
+        long fullLength = Files.size(logFile());
+        int lastRecordLength = 4 + "file9".length() + 8 + 4 + PathHashStore.HASH_LENGTH;
+        // Cut inside the hash, then inside the key length, of the last record.
+        for (long cut : new long[] { 5, lastRecordLength - 2 }) {
+            try (FileChannel channel = FileChannel.open(logFile(), StandardOpenOption.WRITE)) {
+                channel.truncate(fullLength - cut);
+            }
+            try (HashCacheStore store = HashCacheStore.open(logFile(), indexFile())) {
+                assertEquals(9, store.size());
+                assertNull(store.get("file9"));
+                assertEntry(store, "file8", 8, 8);
+                assertEquals(fullLength - lastRecordLength, Files.size(logFile()));
+
+                // Appending after the cut must leave a log that reads back cleanly.
+                store.put("file9", new FileProperty(hash(99), 99));
+            }
+            try (HashCacheStore store = HashCacheStore.open(logFile(), indexFile())) {
+                assertEquals(10, store.size());
+                assertEntry(store, "file9", 99, 99);
+            }
+            assertEquals(fullLength, Files.size(logFile()));
+        }
+    }
+
+    @Test
+    public void keepsKeysApartOnFingerprintCollision() throws IOException {
+        // 64-bit fingerprints practically never collide, so one is planted in the index: the home slot of
+        // "assets/b" is given the fingerprint of "assets/b" but the record of "assets/a", a key of the same length.
+        try (HashCacheStore store = HashCacheStore.open(logFile(), indexFile())) {
+            store.put("assets/a", new FileProperty(hash(1), 1));
+        }
+        try (FileChannel index = FileChannel.open(indexFile(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(32);
+            index.read(header, 0);
+            int capacity = header.getInt(4);
+            long fingerprintA = fingerprint("assets/a");
+            long fingerprintB = fingerprint("assets/b");
+            int slotA = home(fingerprintA, capacity);
+            int slotB = home(fingerprintB, capacity);
+            assertNotEquals(slotA, slotB);
+            ByteBuffer slot = ByteBuffer.allocate(16);
+            index.read(slot, 32 + slotA * 16L);
+            assertEquals(fingerprintA, slot.getLong(0));
+            slot.putLong(0, fingerprintB).rewind();
+            index.write(slot, 32 + slotB * 16L);
+            header.putInt(8, 2).rewind();
+            index.write(header, 0);
+        }
+        try (HashCacheStore store = HashCacheStore.open(logFile(), indexFile())) {
+            assertNull(store.get("assets/b"));
+            store.put("assets/b", new FileProperty(hash(2), 2));
+            assertEntry(store, "assets/a", 1, 1);
+            assertEntry(store, "assets/b", 2, 2);
+        }
+    }
+
+    @Test
+    public void compactionKeepsOnlyLiveEntries() throws IOException {
+        PathHashStore live = new PathHashStore();
+        try (HashCacheStore store = HashCacheStore.open(logFile(), indexFile())) {
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 500; i++) store.put("f/" + i, new FileProperty(hash(round * 1000 + i), round));
+            }
+            assertEquals(1500, store.recordCount());
+            long oldLength = Files.size(logFile());
+
+            for (int i = 0; i < 500; i += 2) live.put("f/" + i, hash(2000 + i), 2);
+            live.put("f/new", hash(5), 5);
+            store.compact(live);
+
+            assertEquals(live.size(), store.size());
+            assertEquals(live.size(), store.recordCount());
+            assertTrue(Files.size(logFile()) < oldLength / 4);
+            assertFalse(Files.exists(logFile().resolveSibling(logFile().getFileName() + ".tmp")));
+            assertEntry(store, "f/0", 2000, 2);
+            assertEntry(store, "f/new", 5, 5);
+            assertNull(store.get("f/1"));
+
+            store.put("f/1", new FileProperty(hash(7), 7));
+        }
+        try (HashCacheStore store = HashCacheStore.open(logFile(), indexFile())) {
+            assertEquals(live.size() + 1, store.size());
+            for (int id = 0; id < live.size(); id++) {
+                FileProperty value = store.get(live.getPath(id));
+                assertArrayEquals(live.getHash(id), value.hash);
+                assertEquals(live.getMTime(id), value.mTime);
+            }
+            assertEntry(store, "f/1", 7, 7);
+            assertNull(store.get("f/3"));
+        }
+    }
+
+    @Test
+    public void rejectsOtherVersions() throws IOException {
+        Files.write(logFile(), ByteBuffer.allocate(4).putInt(1).array());
+        assertThrows(IOException.class, () -> HashCacheStore.open(logFile(), indexFile()));
+    }
+
+    // The fingerprint and home slot as the index stores them: FNV-1a over the UTF-8 key, 0 mapped to 1.
+    private static long fingerprint(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static int home(long fingerprint, int capacity) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & (capacity - 1);
+    }
+}
@@ -0,0 +1,104 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LocalMetadataTest {
+
+    // Name pieces mixing every UTF-8 length with paired and unpaired surrogates, including a lone high surrogate
+    // before a plain char, before another pair, and at the very end of a name.
+    private static final String[] NAME_PIECES = {
+            "block", "mtr", "_", ".json", "é", "ß", "中文", "駅", "🚆", "🏳️",
+            "\uD800", "\uDC00", "\uD800x", "\uD800é", "\uD800中", "\uDBFF🚆", "\uDC00\uD800"
+    };
+
+    // The checksum as the netty ByteBuf based implementation computed it before it streamed into the digest.
+    static byte[] nettyDirChecksum(Iterable<String> sortedDirs, TreeMap<String, byte[]> files) throws Exception {
+        ByteBuf buf = Unpooled.buffer(1024 * 512);
+        sortedDirs.forEach(dir -> buf.writeCharSequence(dir, StandardCharsets.UTF_8));
+        files.forEach((path, hash) -> {
+            buf.writeCharSequence(path, StandardCharsets.UTF_8);
+            buf.writeBytes(hash);
+        });
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(buf.array(), buf.arrayOffset(), buf.writerIndex());
+        return digest.digest();
+    }
+
+    static String randomName(Random random, boolean surrogates) {
+        StringBuilder name = new StringBuilder();
+        int pieceCount = 1 + random.nextInt(4);
+        for (int i = 0; i < pieceCount; i++) {
+            name.append(NAME_PIECES[random.nextInt(surrogates ? NAME_PIECES.length : 8)]);
+        }
+        return name.toString();
+    }
+
+    static LocalMetadata generateTree(Random random, int fileCount, boolean surrogates,
+                                      TreeSet<String> dirs, TreeMap<String, byte[]> files) {
+        LocalMetadata metadata = new LocalMetadata("unused");
+        List<String> dirList = new ArrayList<>();
+        dirList.add("assets");
+        while (files.size() < fileCount) {
+            if (random.nextInt(20) == 0) {
+                String dir = dirList.get(random.nextInt(dirList.size())) + "/" + randomName(random, surrogates);
+                if (dirs.add(dir)) {
+                    dirList.add(dir);
+                    metadata.dirs.add(dir);
+                }
+                continue;
+            }
+            String path = dirList.get(random.nextInt(dirList.size())) + "/" + randomName(random, surrogates) + random.nextInt(1000);
+            if (files.containsKey(path)) continue;
+            byte[] hash = new byte[20];
+            random.nextBytes(hash);
+            files.put(path, hash);
+            metadata.files.put(path, hash);
+        }
+        dirs.add("assets");
+        metadata.dirs.add("assets");
+        return metadata;
+    }
+
+    @Test
+    public void dirChecksumMatchesNettyEncoding() throws Exception {
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            TreeSet<String> dirs = new TreeSet<>();
+            TreeMap<String, byte[]> files = new TreeMap<>();
+            LocalMetadata metadata = generateTree(random, 2000, true, dirs, files);
+            assertArrayEquals(nettyDirChecksum(dirs, files), metadata.getDirChecksum(), "seed " + seed);
+        }
+    }
+
+    @Test
+    public void dirChecksumMatchesNettyEncodingPerName() throws Exception {
+        // One name per piece, so a mismatch points at the piece itself.
+        for (String piece : NAME_PIECES) {
+            for (String name : new String[] { piece, piece + "a", "a" + piece, piece + piece }) {
+                LocalMetadata metadata = new LocalMetadata("unused");
+                byte[] hash = new byte[20];
+                metadata.files.put(name, hash);
+                TreeMap<String, byte[]> files = new TreeMap<>();
+                files.put(name, hash);
+                assertArrayEquals(nettyDirChecksum(List.of(), files), metadata.getDirChecksum(), name);
+            }
+        }
+    }
+
+    @Test
+    public void dirChecksumOfEmptyTree() throws Exception {
+        assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(), new LocalMetadata("unused").getDirChecksum());
+    }
+}
@@ -0,0 +1,112 @@
+package cn.zbx1425.resourcepackupdater.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PathHashStoreTest {
+
+    // The table of a new store, before its first grow.
+    private static final int INITIAL_TABLE_SIZE = 32;
+
+    private static byte[] hash(int seed) {
+        byte[] hash = new byte[PathHashStore.HASH_LENGTH];
+        for (int i = 0; i < hash.length; i++) hash[i] = (byte) (seed * 31 + i);
+        return hash;
+    }
+
+    private static int home(String path, int tableSize) {
+        int hash = path.hashCode();
+        return (hash ^ (hash >>> 16)) & (tableSize - 1);
+    }
+
+    private static List<String> pathsWithHome(int home, int count) {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; paths.size() < count; i++) {
+            String path = "assets/mtr/textures/" + i + ".png";
+            if (home(path, INITIAL_TABLE_SIZE) == home) paths.add(path);
+        }
+        return paths;
+    }
+
+    private static void assertMatches(Map<String, Integer> expected, PathHashStore store) {
+        assertEquals(expected.size(), store.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            int id = store.indexOf(entry.getKey());
+            assertTrue(id >= 0 && id < store.size(), entry.getKey());
+            assertEquals(entry.getKey(), store.getPath(id));
+            assertTrue(store.hashEquals(id, hash(entry.getValue())), entry.getKey());
+        }
+    }
+
+    @Test
+    public void deleteAndReinsertAcrossWrappedProbeChain() {
+        // One chain over the end of the table: slot 31 and 0 hold paths at home, 1 and 2 paths homed on 31.
+        // Deleting from it must shift back the displaced paths and leave the path homed on 0 where it is.
+        List<String> tail = pathsWithHome(INITIAL_TABLE_SIZE - 1, 3);
+        String head = pathsWithHome(0, 1).get(0);
+        List<String> chain = List.of(tail.get(0), head, tail.get(1), tail.get(2));
+        Map<String, Integer> expected = new HashMap<>();
+        PathHashStore store = new PathHashStore();
+        for (String path : chain) {
+            expected.put(path, expected.size());
+            store.put(path, hash(expected.get(path)));
+        }
+        assertMatches(expected, store);
+
+        for (String removed : chain) {
+            assertTrue(store.remove(removed));
+            assertFalse(store.remove(removed));
+            int seed = expected.remove(removed);
+            assertFalse(store.contains(removed));
+            assertMatches(expected, store);
+
+            // Back in at the end of the chain, so the next removal sees another layout.
+            store.put(removed, hash(seed));
+            expected.put(removed, seed);
+            assertMatches(expected, store);
+        }
+        for (String removed : chain) {
+            assertTrue(store.remove(removed));
+            expected.remove(removed);
+            assertMatches(expected, store);
+        }
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomEdits() {
+        Random random = new Random(1);
+        Map<String, Integer> expected = new HashMap<>();
+        PathHashStore store = new PathHashStore();
+        // Few distinct paths against many edits, so most of them land in long, often rearranged probe chains.
+        for (int step = 0; step < 200000; step++) {
+            String path = "p" + random.nextInt(3000);
+            int operation = random.nextInt(10);
+            if (operation < 5) {
+                int seed = random.nextInt();
+                expected.put(path, seed);
+                store.put(path, hash(seed), seed);
+            } else if (operation < 9) {
+                assertEquals(expected.remove(path) != null, store.remove(path));
+            } else {
+                int residue = random.nextInt(97);
+                int removed = store.removeIf(candidate -> Integer.parseInt(candidate.substring(1)) % 97 == residue);
+                int before = expected.size();
+                expected.keySet().removeIf(candidate -> Integer.parseInt(candidate.substring(1)) % 97 == residue);
+                assertEquals(before - expected.size(), removed);
+            }
+            if (step % 5000 == 0) assertMatches(expected, store);
+        }
+        assertMatches(expected, store);
+        for (int id = 0; id < store.size(); id++) {
+            assertEquals((long) expected.get(store.getPath(id)), store.getMTime(id));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+import com.github.luben.zstd.Zstd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+// Bytes on the wire and decode throughput of each Content-Encoding, over the files of the directory given as the
+// first argument or, without one, a generated set of block models and lang entries like those of a pack.
+// Throughput is of decoded bytes, best of ROUNDS, for the blocking engine (wrap) and the async one (wrapPush).
+// The encoders are the reference native ones a server would use; only decoding goes through the mod's own code.
+public class ContentDecodersBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final String[] ENCODINGS = { "identity", "gzip", "zstd", "br" };
+
+    public static void main(String[] args) throws Exception {
+        Brotli4jLoader.ensureAvailability();
+        List<byte[]> files = args.length > 0 ? readFiles(Paths.get(args[0])) : generateFiles();
+        long plainBytes = files.stream().mapToLong(file -> file.length).sum();
+        System.out.printf("%d files, %.1f MiB%n", files.size(), plainBytes / 1048576.0);
+        System.out.printf("%-10s %14s %8s %14s %14s%n", "encoding", "bytes on wire", "ratio", "wrap MiB/s", "wrapPush MiB/s");
+        for (String encoding : ENCODINGS) {
+            List<byte[]> encoded = new ArrayList<>();
+            for (byte[] file : files) encoded.add(encode(encoding, file));
+            long wireBytes = encoded.stream().mapToLong(file -> file.length).sum();
+            double pullSeconds = Double.MAX_VALUE;
+            double pushSeconds = Double.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                pullSeconds = Math.min(pullSeconds, timePull(encoding, encoded, plainBytes));
+                pushSeconds = Math.min(pushSeconds, timePush(encoding, encoded, plainBytes));
+            }
+            System.out.printf("%-10s %14d %7.1f%% %14.1f %14.1f%n", encoding, wireBytes, wireBytes * 100.0 / plainBytes,
+                    plainBytes / 1048576.0 / pullSeconds, plainBytes / 1048576.0 / pushSeconds);
+        }
+    }
+
+    private static double timePull(String encoding, List<byte[]> encoded, long plainBytes) throws IOException {
+        long decodedBytes = 0;
+        long startTime = System.nanoTime();
+        for (byte[] file : encoded) {
+            try (InputStream input = ContentDecoders.wrap(encoding, new ByteArrayInputStream(file))) {
+                decodedBytes += input.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        if (decodedBytes != plainBytes) throw new IOException(encoding + " decoded " + decodedBytes + " bytes");
+        return seconds;
+    }
+
+    private static double timePush(String encoding, List<byte[]> encoded, long plainBytes) throws IOException {
+        ContentDecoders.Decoder decoder = ContentDecoders.get(encoding);
+        CountingOutputStream counter = new CountingOutputStream();
+        long startTime = System.nanoTime();
+        for (byte[] file : encoded) {
+            try (OutputStream output = decoder == null ? counter : decoder.wrapPush(counter)) {
+                // Handed over in pieces about the size the HttpClient delivers.
+                for (int offset = 0; offset < file.length; offset += 16 * 1024) {
+                    output.write(file, offset, Math.min(16 * 1024, file.length - offset));
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        if (counter.count != plainBytes) throw new IOException(encoding + " decoded " + counter.count + " bytes");
+        return seconds;
+    }
+
+    private static byte[] encode(String encoding, byte[] file) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        switch (encoding) {
+            case "gzip" -> {
+                try (OutputStream gzip = new GZIPOutputStream(output)) {
+                    gzip.write(file);
+                }
+            }
+            // Both at their highest level, as for files compressed once ahead of time and served many times.
+            case "zstd" -> output.write(Zstd.compress(file, 19));
+            case "br" -> output.write(Encoder.compress(file, new Encoder.Parameters().setQuality(11)));
+            default -> output.write(file);
+        }
+        return output.toByteArray();
+    }
+
+    private static List<byte[]> readFiles(Path dir) throws IOException {
+        List<byte[]> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path path : walk.filter(Files::isRegularFile).toList()) files.add(Files.readAllBytes(path));
+        }
+        return files;
+    }
+
+    private static List<byte[]> generateFiles() {
+        Random random = new Random(1);
+        String[] words = { "stone", "brick", "rail", "platform", "sign", "glass", "concrete", "tile", "door", "screen" };
+        List<byte[]> files = new ArrayList<>();
+        for (int i = 0; i < 4000; i++) {
+            StringBuilder model = new StringBuilder("{\n  \"parent\": \"block/cube_all\",\n  \"textures\": {\n");
+            int textureCount = 1 + random.nextInt(6);
+            for (int j = 0; j < textureCount; j++) {
+                model.append("    \"").append(j == 0 ? "all" : "side" + j).append("\": \"mtr:block/")
+                        .append(words[random.nextInt(words.length)]).append('_').append(random.nextInt(500)).append("\",\n");
+            }
+            model.append("    \"particle\": \"#all\"\n  },\n  \"elements\": [\n");
+            int elementCount = random.nextInt(12);
+            for (int j = 0; j < elementCount; j++) {
+                model.append("    { \"from\": [").append(random.nextInt(16)).append(", 0, ").append(random.nextInt(16))
+                        .append("], \"to\": [16, ").append(random.nextInt(17)).append(", 16], \"faces\": { \"north\": { \"uv\": [0, 0, 16, 16], \"texture\": \"#all\" } } },\n");
+            }
+            model.append("  ]\n}\n");
+            files.add(model.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder lang = new StringBuilder("{\n");
+        for (int i = 0; i < 20000; i++) {
+            lang.append("  \"block.mtr.").append(words[random.nextInt(words.length)]).append('_').append(i)
+                    .append("\": \"").append(words[random.nextInt(words.length)]).append(' ').append(random.nextInt(100000)).append("\",\n");
+        }
+        files.add(lang.append("}\n").toString().getBytes(StandardCharsets.UTF_8));
+        return files;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void close() {
+            // Left open, as each decoder closes its target when done with a file.
+        }
+    }
+}
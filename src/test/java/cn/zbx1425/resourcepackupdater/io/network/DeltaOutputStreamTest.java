@@ -0,0 +1,158 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import cn.zbx1425.resourcepackupdater.drm.AssetEncryption;
+import cn.zbx1425.resourcepackupdater.drm.ChunkedEncryption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeltaOutputStreamTest {
+
+    private static final int CHUNK = ChunkedEncryption.DEFAULT_CHUNK_SIZE;
+
+    @TempDir
+    Path dir;
+
+    // Builds a patch and, alongside, the file it should produce from base.
+    private static class Patch {
+
+        final byte[] base;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream stream = new DataOutputStream(bytes);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        Patch(byte[] base) throws IOException {
+            this.base = base;
+            stream.write("RPUDELT1".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        Patch copy(long offset, int length) throws IOException {
+            stream.writeByte(1);
+            stream.writeLong(offset);
+            stream.writeInt(length);
+            if (offset + length <= base.length) expected.write(base, (int) offset, length);
+            return this;
+        }
+
+        Patch add(byte[] data) throws IOException {
+            stream.writeByte(2);
+            stream.writeInt(data.length);
+            stream.write(data);
+            expected.write(data);
+            return this;
+        }
+
+        byte[] end() throws IOException {
+            stream.writeByte(0);
+            return bytes.toByteArray();
+        }
+    }
+
+    private static byte[] content(int length, int seed) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    // Hands the patch over in random pieces, down to single bytes, as the network would.
+    private static byte[] apply(Path base, byte[] patch, Random random) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (DeltaOutputStream delta = new DeltaOutputStream(base, output)) {
+            int offset = 0;
+            while (offset < patch.length) {
+                int n = Math.min(patch.length - offset, random.nextBoolean() ? 1 : 1 + random.nextInt(40000));
+                delta.write(patch, offset, n);
+                offset += n;
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private Path writeBase(String name, byte[] content, boolean encrypted) throws IOException {
+        Path file = dir.resolve(name);
+        if (encrypted) {
+            AssetEncryption.writeEncrypted(content, file.toFile());
+        } else {
+            Files.write(file, content);
+        }
+        return file;
+    }
+
+    @Test
+    public void appliesCopiesAcrossChunkBoundaries() throws IOException {
+        byte[] baseContent = content(3 * CHUNK + 5, 1);
+        for (boolean encrypted : new boolean[] { false, true }) {
+            Path base = writeBase("base" + encrypted, baseContent, encrypted);
+            Patch patch = new Patch(baseContent)
+                    .copy(CHUNK - 10, 20)
+                    .add(content(300, 2))
+                    .copy(2L * CHUNK - 1, CHUNK + 2)
+                    .copy(0, baseContent.length)
+                    .copy(3L * CHUNK, 5)
+                    .copy(5, 0)
+                    .add(new byte[0])
+                    // Backwards over a boundary after the reader has moved on.
+                    .copy(CHUNK - 1, 2)
+                    .add(content(CHUNK + 3, 3));
+            byte[] patchBytes = patch.end();
+            for (int seed = 0; seed < 5; seed++) {
+                assertArrayEquals(patch.expected.toByteArray(), apply(base, patchBytes, new Random(seed)), "encrypted " + encrypted);
+            }
+        }
+    }
+
+    @Test
+    public void appliesToEmptyAndSingleChunkBases() throws IOException {
+        for (int length : new int[] { 0, CHUNK, CHUNK + 1 }) {
+            byte[] baseContent = content(length, length);
+            Path base = writeBase("base" + length, baseContent, true);
+            Patch patch = new Patch(baseContent).add(content(10, 4)).copy(0, length).copy(Math.max(0, length - 1), Math.min(1, length));
+            byte[] patchBytes = patch.end();
+            assertArrayEquals(patch.expected.toByteArray(), apply(base, patchBytes, new Random(length)), "length " + length);
+        }
+    }
+
+    @Test
+    public void rejectsCopyPastEndOfBase() throws IOException {
+        byte[] baseContent = content(2 * CHUNK, 5);
+        for (boolean encrypted : new boolean[] { false, true }) {
+            Path base = writeBase("short" + encrypted, baseContent, encrypted);
+            for (long[] copy : new long[][] { { 2L * CHUNK - 10, 11 }, { 2L * CHUNK, 1 }, { 10L * CHUNK, 1 } }) {
+                byte[] patchBytes = new Patch(baseContent).copy(copy[0], (int) copy[1]).end();
+                assertThrows(IOException.class, () -> apply(base, patchBytes, new Random(0)),
+                        "encrypted " + encrypted + " copy at " + copy[0]);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMalformedPatches() throws IOException {
+        byte[] baseContent = content(100, 6);
+        Path base = writeBase("base", baseContent, false);
+        byte[] unfinished = new Patch(baseContent).copy(0, 10).bytes.toByteArray();
+        assertThrows(EOFException.class, () -> apply(base, unfinished, new Random(0)));
+
+        byte[] trailing = new Patch(baseContent).copy(0, 10).end();
+        byte[] withTrailing = Arrays.copyOf(trailing, trailing.length + 1);
+        assertThrows(IOException.class, () -> apply(base, withTrailing, new Random(0)));
+
+        byte[] badMagic = new Patch(baseContent).end();
+        badMagic[0] = 'X';
+        assertThrows(IOException.class, () -> apply(base, badMagic, new Random(0)));
+
+        byte[] badOpcode = new Patch(baseContent).end();
+        badOpcode[badOpcode.length - 1] = 7;
+        assertThrows(IOException.class, () -> apply(base, badOpcode, new Random(0)));
+    }
+}
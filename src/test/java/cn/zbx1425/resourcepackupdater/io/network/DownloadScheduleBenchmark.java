@@ -0,0 +1,191 @@
+package cn.zbx1425.resourcepackupdater.io.network;
+
+import cn.zbx1425.resourcepackupdater.ResourcePackUpdater;
+import cn.zbx1425.resourcepackupdater.io.ProgressReceiver;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Makespan of DownloadDispatcher on packs with skewed file sizes, against the same downloads started in the
+// order they were dispatched, as DownloadDispatcher used to, at the same fixed concurrency. The local server
+// holds every connection to PER_CONNECTION_RATE after LATENCY_MILLIS, the way a distant server would.
+// Also follows the ETA shown while DownloadDispatcher runs, against the time that was actually left.
+public class DownloadScheduleBenchmark {
+
+    private static final int CONCURRENCY = 4;
+    private static final long PER_CONNECTION_RATE = 4 * 1048576;
+    private static final long LATENCY_MILLIS = 20;
+    private static final Pattern ETA_PATTERN = Pattern.compile("ETA (?:(\\d+):)?(\\d+):(\\d+)");
+
+    public static void main(String[] args) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/", exchange -> {
+            long size = Long.parseLong(exchange.getRequestURI().getPath().substring(1).split("-")[0]);
+            try {
+                Thread.sleep(LATENCY_MILLIS);
+                exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+                byte[] piece = new byte[16384];
+                long start = System.nanoTime();
+                try (OutputStream output = exchange.getResponseBody()) {
+                    for (long sent = 0; sent < size; ) {
+                        int n = (int) Math.min(piece.length, size - sent);
+                        output.write(piece, 0, n);
+                        sent += n;
+                        long due = start + sent * 1_000_000_000L / PER_CONNECTION_RATE;
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+                }
+            } catch (InterruptedException ex) {
+                exchange.close();
+            }
+        });
+        server.start();
+        String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+        ResourcePackUpdater.CONFIG.minDownloadConcurrency.value = CONCURRENCY;
+        ResourcePackUpdater.CONFIG.maxDownloadConcurrency.value = CONCURRENCY;
+        ResourcePackUpdater.CONFIG.downloadSegments.value = 1;
+        ResourcePackUpdater.CONFIG.segmentedDownloadMiB.value = 1024;
+        ResourcePackUpdater.CONFIG.deepVerifyEncrypted.value = false;
+        ResourcePackUpdater.CONFIG.asyncDownloads.value = false;
+        try {
+            Random random = new Random(1);
+            run("one huge file, dispatched last", smallFiles(random, 400), List.of(48L * 1048576), true, baseUrl);
+            run("two huge files, dispatched last", smallFiles(random, 400), List.of(32L * 1048576, 32L * 1048576), true, baseUrl);
+            run("eight large files, shuffled in", smallFiles(random, 300), Collections.nCopies(8, 12L * 1048576), false, baseUrl);
+            run("small files only", smallFiles(random, 600), List.of(), false, baseUrl);
+        } finally {
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    private static List<Long> smallFiles(Random random, int count) {
+        List<Long> sizes = new ArrayList<>();
+        for (int i = 0; i < count; i++) sizes.add(1024L + random.nextInt(256 * 1024));
+        return sizes;
+    }
+
+    private static void run(String name, List<Long> smallSizes, List<Long> largeSizes, boolean largeLast, String baseUrl) throws Exception {
+        List<Long> sizes = new ArrayList<>(smallSizes);
+        if (largeLast) {
+            sizes.addAll(largeSizes);
+        } else {
+            sizes.addAll(largeSizes);
+            Collections.shuffle(sizes, new Random(sizes.size()));
+        }
+        long totalBytes = sizes.stream().mapToLong(Long::longValue).sum();
+        long largest = sizes.stream().mapToLong(Long::longValue).max().orElse(0);
+        // Leaving out the time per request, no schedule beats the largest file alone or all bytes spread over every connection.
+        double lowerBound = Math.max(largest, totalBytes / (double) CONCURRENCY) / PER_CONNECTION_RATE;
+
+        double inOrder = runInOrder(sizes, baseUrl);
+        List<double[]> etaSamples = new ArrayList<>();
+        double sorted = runDispatcher(sizes, baseUrl, etaSamples);
+
+        System.out.printf("%s: %d files, %.1f MiB%n", name, sizes.size(), totalBytes / 1048576.0);
+        System.out.printf("  %-28s %7.2f s%n", "lower bound", lowerBound);
+        System.out.printf("  %-28s %7.2f s%n", "dispatch order", inOrder);
+        System.out.printf("  %-28s %7.2f s  (%.0f%% shorter)%n", "DownloadDispatcher", sorted, (1 - sorted / inOrder) * 100);
+        StringBuilder etaLine = new StringBuilder("  ETA error at");
+        for (int quarter = 1; quarter <= 3; quarter++) {
+            double elapsed = sorted * quarter / 4;
+            double[] sample = etaSamples.stream().filter(s -> s[0] >= elapsed).findFirst().orElse(null);
+            if (sample == null) continue;
+            etaLine.append(String.format(" %d%%: %+.1f s", quarter * 25, sample[1] - (sorted - sample[0])));
+        }
+        System.out.println(etaLine);
+    }
+
+    // What DownloadDispatcher did before it sorted: every download started in the order it was dispatched.
+    private static double runInOrder(List<Long> sizes, String baseUrl) throws Exception {
+        DownloadDispatcher callbacks = new DownloadDispatcher(new NullProgressReceiver());
+        ExecutorService pool = Executors.newFixedThreadPool(CONCURRENCY);
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < sizes.size(); i++) {
+            DownloadTask task = new DownloadTask(callbacks, baseUrl + sizes.get(i) + "-" + i, "file" + i, sizes.get(i));
+            futures.add(pool.submit(() -> {
+                task.runBlocking(OutputStream.nullOutputStream());
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        callbacks.close();
+        return seconds;
+    }
+
+    // Polled as the sync screen does, recording the ETA it would show against the time elapsed.
+    private static double runDispatcher(List<Long> sizes, String baseUrl, List<double[]> etaSamples) throws Exception {
+        EtaReceiver receiver = new EtaReceiver();
+        DownloadDispatcher dispatcher = new DownloadDispatcher(receiver);
+        for (int i = 0; i < sizes.size(); i++) {
+            dispatcher.dispatch(new DownloadTask(dispatcher, baseUrl + sizes.get(i) + "-" + i, "file" + i, sizes.get(i)),
+                    OutputStream::nullOutputStream);
+        }
+        long start = System.nanoTime();
+        while (!dispatcher.tasksFinished()) {
+            dispatcher.updateSummary();
+            if (receiver.etaSeconds >= 0) etaSamples.add(new double[] { (System.nanoTime() - start) / 1e9, receiver.etaSeconds });
+            Thread.sleep(1000 / 30);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        dispatcher.close();
+        return seconds;
+    }
+
+    private static class EtaReceiver extends NullProgressReceiver {
+
+        long etaSeconds = -1;
+
+        @Override
+        public void setInfo(String aux1, String aux2) {
+            Matcher matcher = ETA_PATTERN.matcher(aux2);
+            if (!matcher.find()) return;
+            long hours = matcher.group(1) == null ? 0 : Long.parseLong(matcher.group(1));
+            etaSeconds = hours * 3600 + Long.parseLong(matcher.group(2)) * 60 + Long.parseLong(matcher.group(3));
+        }
+    }
+
+    private static class NullProgressReceiver implements ProgressReceiver {
+
+        @Override
+        public void printLog(String line) {
+        }
+
+        @Override
+        public void printLogOutsidePolling(String line) {
+        }
+
+        @Override
+        public void amendLastLog(String postfix) {
+        }
+
+        @Override
+        public void setProgress(float primary, float secondary) {
+        }
+
+        @Override
+        public void setInfo(String aux1, String aux2) {
+        }
+
+        @Override
+        public void setException(Exception exception) {
+        }
+    }
+}